@@ -1,11 +1,17 @@
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.PrintWriter;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Scanner;
 
 public class AddSignalInfo {
-	static String tableFn = "", modelFn = "", ofn = "";
+	// Options are kept per instance so a server can run several jobs at once, each with its own instance
+	String tableFn = "", modelFn = "", ofn = "", modelCacheFn = "";
+	
+	String mode = "ANNOTATE";
+	double maxShift = 1.0;
+
 	static void usage()
 	{
 		System.out.println("Usage: java -cp src AddSignalInfo [args]");
@@ -15,10 +21,32 @@ public class AddSignalInfo {
 		System.out.println("  table_file   (String) - table of k-mers which frequently occur in strand-specific variants");
 		System.out.println("  out_file     (String) - file to write the updated table to");
 		System.out.println("  model_file   (String) - file with mean and standard deviations of signal for each k-mer");
+		System.out.println("                          (a comma-separated list annotates against several models in one pass)");
+		System.out.println();
+		System.out.println("Optional args:");
+		System.out.println("  model_cache  (String) [model_file.bin] - binary copy of each model which is built on the first run and memory-mapped afterwards");
+		System.out.println("                                           (comma-separated, one per model)");
+		System.out.println("  mode         (String) [ANNOTATE]       - one of {ANNOTATE, SCREEN}");
+		System.out.println("    ANNOTATE: Add signal levels for the k-mers in table_file");
+		System.out.println("    SCREEN  : Ignore table_file and list every single-base substitution of every k-mer in each model");
+		System.out.println("              whose level shift is at most max_shift, i.e. substitutions the signal can barely distinguish");
+		System.out.println("  max_shift    (float)  [1.0]            - the largest absolute level shift reported in SCREEN mode");
+		System.out.println();
+		System.out.println("For each model, the level mean and standard deviation of the k-mer, alt k-mer, and their reverse complements");
+		System.out.println("are added, along with the separation between the ref and alt levels on each strand:");
+		System.out.println("  level_delta   - alt level mean minus ref level mean");
+		System.out.println("  level_z       - level_delta divided by the combined standard deviation of the two levels");
+		System.out.println("  level_overlap - overlapping area of the ref and alt level distributions (1 means indistinguishable)");
+		System.out.println("When there are several models, each added column name is suffixed with the model's file name without its");
+		System.out.println("extension. Models whose file names match are told apart by adding their parent directories, e.g. _r9_model");
+		System.out.println("and _r10_model, and the same file given twice is suffixed with its position in model_file.");
 		System.out.println();
 	}
 	
-	static void parseArgs(String[] args)
+	/*
+	 * Parses the command line options, returning false if any required ones are missing
+	 */
+	boolean parseArgs(String[] args)
 	{
 		for(String s : args)
 		{
@@ -34,36 +62,58 @@ public class AddSignalInfo {
 				if(key.equalsIgnoreCase("table_file")) { tableFn = val; }
 				else if(key.equalsIgnoreCase("out_file")) { ofn = val; } 
 				else if(key.equalsIgnoreCase("model_file")) { modelFn = val; }
+				else if(key.equalsIgnoreCase("model_cache")) { modelCacheFn = val; }
+				else if(key.equalsIgnoreCase("max_shift")) { maxShift = Double.parseDouble(val); }
+				else if(key.equalsIgnoreCase("mode"))
+				{
+					if(val.equalsIgnoreCase("annotate")) { mode = "ANNOTATE"; }
+					if(val.equalsIgnoreCase("screen")) { mode = "SCREEN"; }
+				}
 			}
 		}
 		
-		if(tableFn.length() == 0 || ofn.length() == 0 || modelFn.length() == 0)
+		if((tableFn.length() == 0 && !mode.equals("SCREEN")) || ofn.length() == 0 || modelFn.length() == 0)
 		{
-			usage();
-			System.exit(1);
+			return false;
 		}
+		return true;
 	}
 public static void main(String[] args) throws Exception
 {
-	parseArgs(args);
-	Scanner modelInput = new Scanner(new FileInputStream(new File(modelFn)));
-	GetProblematicKmers.Table model = new GetProblematicKmers.Table(modelInput.nextLine());
-	while(modelInput.hasNext())
+	AddSignalInfo tool = new AddSignalInfo();
+	if(!tool.parseArgs(args))
+	{
+		usage();
+		System.exit(1);
+	}
+	tool.run();
+}
+
+/*
+ * Runs the tool with the options which have been parsed
+ */
+void run() throws Exception
+{
+	String[] modelFns = modelFn.split(",");
+	String[] modelCacheFns = modelCacheFn.length() == 0 ? null : modelCacheFn.split(",");
+	if(modelCacheFns != null && modelCacheFns.length != modelFns.length)
 	{
-		model.addRow(modelInput.nextLine());
+		throw new Exception("Expected one model_cache per model_file but got " + modelCacheFns.length + " for " + modelFns.length);
 	}
-	modelInput.close();
 	
-	HashMap<String, Double> kmerToMean = new HashMap<String, Double>();
-	HashMap<String, Double> kmerToStdev = new HashMap<String, Double>();
+	PoreModel[] models = new PoreModel[modelFns.length];
+	String[] names = modelNames(modelFns);
+	String[] suffixes = new String[modelFns.length];
+	for(int i = 0; i<modelFns.length; i++)
+	{
+		models[i] = modelCacheFns == null ? PoreModel.load(modelFns[i]) : PoreModel.load(modelFns[i], modelCacheFns[i]);
+		suffixes[i] = modelFns.length == 1 ? "" : ("_" + names[i]);
+	}
 	
-	for(int i = 0; i<model.rows.size(); i++)
+	if(mode.equals("SCREEN"))
 	{
-		String kmer = model.getValue(i, "kmer");
-		double mean = Double.parseDouble(model.getValue(i, "level_mean"));
-		double stdev = Double.parseDouble(model.getValue(i, "level_stdv"));
-		kmerToMean.put(kmer, mean);
-		kmerToStdev.put(kmer, stdev);
+		screen(names, models);
+		return;
 	}
 	
 	Scanner input = new Scanner(new FileInputStream(new File(tableFn)));
@@ -71,31 +121,146 @@ public static void main(String[] args) throws Exception
 		
 	String header = input.nextLine();
 	
-	GetProblematicKmers.Table table = new GetProblematicKmers.Table(header);
+	TableReader table = new TableReader(header);
+	int kmerCol = table.getColumn("kmer");
+	int revKmerCol = table.getColumn("rc_kmer");
+	int altKmerCol = table.getColumn("alt_kmer");
+	int altRevKmerCol = table.getColumn("alt_rc_kmer");
 
-	out.println(header + 
-			"\t" + "level_mean" + "\t" + "level_stdv" +
-			"\t" + "alt_level_mean" + "\t" + "alt_level_stdv" + 
-			"\t" + "rc_level_mean" + "\t" + "rc_level_stdv" +
-			"\t" + "alt_rc_level_mean" + "\t" + "alt_rc_level_stdv");
+	StringBuilder headerOut = new StringBuilder(header);
+	for(String suffix : suffixes)
+	{
+		String[] fields = new String[] {"level_mean", "level_stdv", "alt_level_mean", "alt_level_stdv",
+				"rc_level_mean", "rc_level_stdv", "alt_rc_level_mean", "alt_rc_level_stdv",
+				"level_delta", "level_z", "level_overlap", "rc_level_delta", "rc_level_z", "rc_level_overlap"};
+		for(String field : fields)
+		{
+			headerOut.append("\t" + field + suffix);
+		}
+	}
+	out.println(headerOut);
+	
 	while(input.hasNext())
 	{
 		String line = input.nextLine();
-		table.addRow(line);
-		int rowIndex = table.rows.size() - 1;
+		if(line.length() == 0)
+		{
+			continue;
+		}
+		table.setRow(line);
 		
-		String forwardKmer = table.getValue(rowIndex, "kmer");
-		String revKmer = table.getValue(rowIndex, "rc_kmer");
-		String altKmer = table.getValue(rowIndex, "alt_kmer");
-		String altRevKmer = table.getValue(rowIndex, "alt_rc_kmer");
+		String forwardKmer = table.getString(kmerCol);
+		String revKmer = table.getString(revKmerCol);
+		String altKmer = table.getString(altKmerCol);
+		String altRevKmer = table.getString(altRevKmerCol);
 
-		out.printf("%s\t%.6f\t%.6f\t%.6f\t%.6f\t%.6f\t%.6f\t%.6f\t%.6f\n", line,
-				kmerToMean.get(forwardKmer), kmerToStdev.get(forwardKmer),
-				kmerToMean.get(altKmer), kmerToStdev.get(altKmer), 
-				kmerToMean.get(revKmer), kmerToStdev.get(revKmer),
-				kmerToMean.get(altRevKmer), kmerToStdev.get(altRevKmer));
+		out.print(line);
+		for(PoreModel model : models)
+		{
+			double mean = model.getMean(forwardKmer), stdev = model.getStdev(forwardKmer);
+			double altMean = model.getMean(altKmer), altStdev = model.getStdev(altKmer);
+			double rcMean = model.getMean(revKmer), rcStdev = model.getStdev(revKmer);
+			double altRcMean = model.getMean(altRevKmer), altRcStdev = model.getStdev(altRevKmer);
+			out.printf("\t%.6f\t%.6f\t%.6f\t%.6f\t%.6f\t%.6f\t%.6f\t%.6f\t%.6f\t%.6f\t%.6f\t%.6f\t%.6f\t%.6f",
+					mean, stdev, altMean, altStdev, rcMean, rcStdev, altRcMean, altRcStdev,
+					altMean - mean, PoreModel.levelZScore(mean, stdev, altMean, altStdev), PoreModel.levelOverlap(mean, stdev, altMean, altStdev),
+					altRcMean - rcMean, PoreModel.levelZScore(rcMean, rcStdev, altRcMean, altRcStdev), PoreModel.levelOverlap(rcMean, rcStdev, altRcMean, altRcStdev));
+		}
+		out.println();
 	}
 	input.close();
 	out.close();
 }
+
+/*
+ * Writes every single-base substitution whose level shift is at most maxShift by scanning each model's substitution table
+ */
+void screen(String[] names, PoreModel[] models) throws Exception
+{
+	PrintWriter out = new PrintWriter(new File(ofn));
+	out.println("MODEL\tKMER\tOFFSET\tALT_KMER\tLEVEL_SHIFT");
+	for(int i = 0; i<models.length; i++)
+	{
+		String name = names[i];
+		SubstitutionTable table = new SubstitutionTable(models[i]);
+		int k = table.k;
+		for(int code = 0; code<table.minAbsShifts.length; code++)
+		{
+			// Skip k-mers where no substitution is close enough, which is most of them
+			if(!(table.minAbsShifts[code] <= maxShift))
+			{
+				continue;
+			}
+			String kmer = PoreModel.decode(code, k);
+			for(int offset = 0; offset<k; offset++)
+			{
+				int refBase = (code >>> (2 * (k - 1 - offset))) & 3;
+				for(int base = 0; base<4; base++)
+				{
+					float shift = table.getShift(code, offset, base);
+					if(base == refBase || !(Math.abs(shift) <= maxShift))
+					{
+						continue;
+					}
+					String altKmer = kmer.substring(0, offset) + GetStrandDifferences.intToChar(base) + kmer.substring(offset + 1);
+					out.printf("%s\t%s\t%d\t%s\t%.6f\n", name, kmer, offset, altKmer, shift);
+				}
+			}
+		}
+	}
+	out.close();
+}
+
+/*
+ * Gets the names used to label each model's columns: the file name without its extension, with as many parent
+ * directories added in front as it takes for every model to get a different name
+ */
+static String[] modelNames(String[] fns)
+{
+	String[] names = new String[fns.length];
+	String[] prev = null;
+	for(int depth = 0; ; depth++)
+	{
+		for(int i = 0; i<fns.length; i++)
+		{
+			names[i] = modelName(fns[i], depth);
+		}
+		if(new HashSet<String>(Arrays.asList(names)).size() == names.length)
+		{
+			return names;
+		}
+		if(prev != null && Arrays.equals(prev, names))
+		{
+			// Out of directories, so some model was given more than once
+			break;
+		}
+		prev = names.clone();
+	}
+	for(int i = 0; i<fns.length; i++)
+	{
+		names[i] = modelName(fns[i], 0) + "_" + (i + 1);
+	}
+	return names;
+}
+
+/*
+ * Gets a model's file name without its extension, preceded by up to depth of its parent directories
+ */
+static String modelName(String fn, int depth)
+{
+	File file = new File(fn).getAbsoluteFile();
+	String name = file.getName();
+	int dotIdx = name.lastIndexOf('.');
+	if(dotIdx > 0)
+	{
+		name = name.substring(0, dotIdx);
+	}
+	File parent = file.getParentFile();
+	for(int i = 0; i<depth && parent != null && parent.getName().length() > 0; i++)
+	{
+		name = parent.getName() + "_" + name;
+		parent = parent.getParentFile();
+	}
+	return name;
+}
 }
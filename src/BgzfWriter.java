@@ -0,0 +1,287 @@
+/*
+ * An output stream which writes block-gzip (BGZF) files, the gzip variant used by samtools and tabix.
+ * Data is cut into fixed-size blocks which are compressed in parallel and written in order, and the
+ * uncompressed offset of any written byte can be turned into a BGZF virtual offset once the file is closed.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+public class BgzfWriter extends OutputStream
+{
+	// The amount of uncompressed data in each block, chosen like samtools so a block always fits in 64 KB compressed
+	static final int BLOCK_DATA_SIZE = 0xff00;
+	static final int MAX_BLOCK_SIZE = 0x10000;
+	static final int HEADER_SIZE = 18, FOOTER_SIZE = 8;
+
+	// The empty block which marks the end of a BGZF file
+	static final byte[] EOF_BLOCK = {
+		0x1f, (byte)0x8b, 0x08, 0x04, 0, 0, 0, 0, 0, (byte)0xff, 0x06, 0, 0x42, 0x43, 0x02, 0, 0x1b, 0, 0x03, 0, 0, 0, 0, 0, 0, 0, 0, 0
+	};
+
+	OutputStream out;
+	ExecutorService workers;
+
+	// Blocks which are being compressed, in the order they will be written
+	ArrayDeque<Future<byte[]>> pending;
+	int maxPending;
+
+	byte[] buffer;
+	int bufferLength;
+	long uncompressedOffset;
+
+	// The compressed offset at which each block starts, followed by the offset of the end-of-file block
+	ArrayList<Long> blockStarts;
+	long compressedOffset;
+
+	BgzfWriter(File file, int threads) throws Exception
+	{
+		out = new BufferedOutputStream(new FileOutputStream(file), MAX_BLOCK_SIZE);
+		threads = Math.max(1, threads);
+		workers = threads > 1 ? Executors.newFixedThreadPool(threads, new DaemonThreadFactory()) : null;
+		pending = new ArrayDeque<Future<byte[]>>();
+		maxPending = 4 * threads;
+		buffer = new byte[BLOCK_DATA_SIZE];
+		blockStarts = new ArrayList<Long>();
+	}
+
+	public void write(int b) throws IOException
+	{
+		buffer[bufferLength++] = (byte)b;
+		uncompressedOffset++;
+		if(bufferLength == BLOCK_DATA_SIZE)
+		{
+			submitBlock();
+		}
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		while(len > 0)
+		{
+			int n = Math.min(len, BLOCK_DATA_SIZE - bufferLength);
+			System.arraycopy(b, off, buffer, bufferLength, n);
+			bufferLength += n;
+			uncompressedOffset += n;
+			off += n;
+			len -= n;
+			if(bufferLength == BLOCK_DATA_SIZE)
+			{
+				submitBlock();
+			}
+		}
+	}
+
+	/*
+	 * The number of uncompressed bytes written so far, which is the uncompressed offset of the next byte
+	 */
+	long getUncompressedOffset()
+	{
+		return uncompressedOffset;
+	}
+
+	/*
+	 * Converts an uncompressed offset into a virtual offset: the compressed offset of its block in the high 48 bits
+	 * and its offset within the block in the low 16.  Only valid once the file is closed.
+	 */
+	long getVirtualOffset(long offset)
+	{
+		int block = (int)(offset / BLOCK_DATA_SIZE);
+		int withinBlock = (int)(offset % BLOCK_DATA_SIZE);
+		if(block >= blockStarts.size() - 1 && withinBlock == 0)
+		{
+			// The end of the data is the start of the end-of-file block
+			return blockStarts.get(blockStarts.size() - 1) << 16;
+		}
+		return (blockStarts.get(block) << 16) | withinBlock;
+	}
+
+	/*
+	 * Hands the buffered data off to be compressed, writing out finished blocks if too many are waiting
+	 */
+	void submitBlock() throws IOException
+	{
+		if(bufferLength == 0)
+		{
+			return;
+		}
+		CompressTask task = new CompressTask(buffer, bufferLength);
+		if(workers == null)
+		{
+			writeBlock(task.call());
+		}
+		else
+		{
+			pending.add(workers.submit(task));
+			while(pending.size() >= maxPending)
+			{
+				writeNextPending();
+			}
+		}
+		buffer = new byte[BLOCK_DATA_SIZE];
+		bufferLength = 0;
+	}
+
+	void writeNextPending() throws IOException
+	{
+		try
+		{
+			writeBlock(pending.poll().get());
+		}
+		catch(Exception e)
+		{
+			throw new IOException("Failed to compress block", e);
+		}
+	}
+
+	void writeBlock(byte[] block) throws IOException
+	{
+		blockStarts.add(compressedOffset);
+		out.write(block);
+		compressedOffset += block.length;
+	}
+
+	/*
+	 * Partially filled blocks are only written when the file is closed, so every block but the last is full
+	 * and offsets can be mapped to blocks by division
+	 */
+	public void flush() throws IOException
+	{
+	}
+
+	public void close() throws IOException
+	{
+		if(out == null)
+		{
+			return;
+		}
+		submitBlock();
+		while(!pending.isEmpty())
+		{
+			writeNextPending();
+		}
+		if(workers != null)
+		{
+			workers.shutdown();
+		}
+		blockStarts.add(compressedOffset);
+		out.write(EOF_BLOCK);
+		out.close();
+		out = null;
+	}
+
+	/*
+	 * Stops compressing and closes the file without finishing it, for when the output is being thrown away.
+	 * Nothing can be written after this.
+	 */
+	void abort()
+	{
+		if(workers != null)
+		{
+			workers.shutdownNow();
+		}
+		if(out != null)
+		{
+			try
+			{
+				out.close();
+			}
+			catch(IOException e)
+			{
+				// The file is being abandoned anyway
+			}
+			out = null;
+		}
+	}
+
+	/*
+	 * Makes compression threads daemon threads, so a writer which is never closed can't keep the JVM running
+	 */
+	static class DaemonThreadFactory implements ThreadFactory
+	{
+		public Thread newThread(Runnable r)
+		{
+			Thread thread = new Thread(r, "bgzf-compress");
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+	/*
+	 * Compresses one block of data into a complete BGZF block
+	 */
+	static class CompressTask implements Callable<byte[]>
+	{
+		byte[] data;
+		int length;
+
+		CompressTask(byte[] data, int length)
+		{
+			this.data = data;
+			this.length = length;
+		}
+
+		public byte[] call()
+		{
+			byte[] block = new byte[MAX_BLOCK_SIZE];
+			Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+			deflater.setInput(data, 0, length);
+			deflater.finish();
+			int compressedLength = deflater.deflate(block, HEADER_SIZE, MAX_BLOCK_SIZE - HEADER_SIZE - FOOTER_SIZE);
+			if(!deflater.finished())
+			{
+				// Incompressible data can grow slightly, so fall back to storing it
+				deflater.reset();
+				deflater.setLevel(Deflater.NO_COMPRESSION);
+				deflater.setInput(data, 0, length);
+				deflater.finish();
+				compressedLength = deflater.deflate(block, HEADER_SIZE, MAX_BLOCK_SIZE - HEADER_SIZE - FOOTER_SIZE);
+			}
+			deflater.end();
+
+			int blockSize = HEADER_SIZE + compressedLength + FOOTER_SIZE;
+			block[0] = 0x1f;
+			block[1] = (byte)0x8b;
+			block[2] = 0x08;
+			block[3] = 0x04;
+			block[9] = (byte)0xff;
+			block[10] = 0x06;
+			block[12] = 0x42;
+			block[13] = 0x43;
+			block[14] = 0x02;
+			putShort(block, 16, blockSize - 1);
+
+			CRC32 crc = new CRC32();
+			crc.update(data, 0, length);
+			putInt(block, HEADER_SIZE + compressedLength, (int)crc.getValue());
+			putInt(block, HEADER_SIZE + compressedLength + 4, length);
+			byte[] res = new byte[blockSize];
+			System.arraycopy(block, 0, res, 0, blockSize);
+			return res;
+		}
+	}
+
+	static void putShort(byte[] b, int off, int val)
+	{
+		b[off] = (byte)val;
+		b[off + 1] = (byte)(val >>> 8);
+	}
+
+	static void putInt(byte[] b, int off, int val)
+	{
+		putShort(b, off, val);
+		putShort(b, off + 2, val >>> 16);
+	}
+}
@@ -0,0 +1,758 @@
+/*
+ * A persistent site-by-sample matrix built from the site tables of many samples.
+ * Each site keeps a compressed bitmap of the samples it was reported in, which makes
+ * recurrence counts and unions/intersections of sites fast to answer.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.TreeMap;
+
+public class CohortStore
+{
+	// Identifies store files and the version of their layout
+	static final int STORE_MAGIC = 0x43535431;
+	static final int STORE_VERSION = 2;
+
+	static String storeFn = "", tableFilesArg = "", tableListFn = "", ofn = "";
+	static String query = "";
+	static int minSamples = 2;
+	static String sitesArg = "";
+
+	// Sample names indexed by sample ID
+	ArrayList<String> sampleNames;
+	HashMap<String, Integer> sampleIds;
+
+	// For each contig, in the order they were first seen, the samples at each position
+	LinkedHashMap<String, TreeMap<Integer, SampleBitmap>> sites;
+
+	CohortStore()
+	{
+		sampleNames = new ArrayList<String>();
+		sampleIds = new HashMap<String, Integer>();
+		sites = new LinkedHashMap<String, TreeMap<Integer, SampleBitmap>>();
+	}
+
+	static void usage()
+	{
+		System.out.println("Usage: java -cp src CohortStore [args]");
+		System.out.println("  Example: java -cp src CohortStore store_file=cohort.store table_list=tables.txt");
+		System.out.println("           java -cp src CohortStore store_file=cohort.store query=recurrent min_samples=10");
+		System.out.println();
+		System.out.println("Required args:");
+		System.out.println("  store_file   (String) - cohort store to create, add to, or query");
+		System.out.println();
+		System.out.println("Optional args:");
+		System.out.println("  table_files  (String) [\"\"] - comma-separated site tables (with CHR, POS and optionally SAMPLE columns) to add");
+		System.out.println("                              to the store; rows without a SAMPLE column use the table's file name");
+		System.out.println("  table_list   (String) [\"\"] - file with the path of one site table to add per line");
+		System.out.println("  query        (String) [\"\"] - one of {RECURRENT, ALL, ANY} to run against the store after adding tables");
+		System.out.println("    RECURRENT: Sites reported in at least min_samples samples");
+		System.out.println("    ALL      : Samples which have every one of the given sites");
+		System.out.println("    ANY      : Samples which have at least one of the given sites");
+		System.out.println("  min_samples  (int)    [2]  - minimum number of samples for a site to be RECURRENT");
+		System.out.println("  sites        (String) [\"\"] - comma-separated sites given as contig:pos for ALL and ANY");
+		System.out.println("  out_file     (String) [\"\"] - file to write query results to instead of standard output");
+		System.out.println();
+	}
+
+	static void parseArgs(String[] args)
+	{
+		for(String s : args)
+		{
+			int equalsIdx = s.indexOf('=');
+			if(equalsIdx == -1)
+			{
+
+			}
+			else
+			{
+				String key = s.substring(0, equalsIdx);
+				String val = s.substring(1 + equalsIdx);
+				if(key.equalsIgnoreCase("store_file")) { storeFn = val; }
+				else if(key.equalsIgnoreCase("table_files")) { tableFilesArg = val; }
+				else if(key.equalsIgnoreCase("table_list")) { tableListFn = val; }
+				else if(key.equalsIgnoreCase("out_file")) { ofn = val; }
+				else if(key.equalsIgnoreCase("min_samples")) { minSamples = Integer.parseInt(val); }
+				else if(key.equalsIgnoreCase("sites")) { sitesArg = val; }
+				else if(key.equalsIgnoreCase("query"))
+				{
+					if(val.equalsIgnoreCase("recurrent")) { query = "RECURRENT"; }
+					if(val.equalsIgnoreCase("all")) { query = "ALL"; }
+					if(val.equalsIgnoreCase("any")) { query = "ANY"; }
+				}
+			}
+		}
+
+		if(storeFn.length() == 0 || ((query.equals("ALL") || query.equals("ANY")) && sitesArg.length() == 0))
+		{
+			usage();
+			System.exit(1);
+		}
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		parseArgs(args);
+
+		// Hold the lock until the store is saved so another run can't save over the tables added here
+		StoreLock lock = new StoreLock(storeFn);
+		CohortStore store;
+		try
+		{
+			store = updateStore();
+		}
+		finally
+		{
+			lock.release();
+		}
+
+		if(query.length() == 0)
+		{
+			return;
+		}
+		PrintWriter out = ofn.length() == 0 ? new PrintWriter(System.out) : new PrintWriter(new File(ofn));
+		if(query.equals("RECURRENT"))
+		{
+			store.writeRecurrent(out, minSamples);
+		}
+		else
+		{
+			SampleBitmap res = null;
+			for(String site : sitesArg.split(","))
+			{
+				int colonIdx = site.lastIndexOf(':');
+				SampleBitmap samples = store.getSamples(site.substring(0, colonIdx), Integer.parseInt(site.substring(colonIdx + 1)));
+				if(res == null)
+				{
+					res = samples;
+				}
+				else
+				{
+					res = query.equals("ALL") ? res.and(samples) : res.or(samples);
+				}
+			}
+			out.println("SAMPLE_COUNT\tSAMPLES");
+			out.println(res.cardinality() + "\t" + store.getSampleList(res));
+		}
+		out.close();
+	}
+
+	/*
+	 * Loads the store, or starts a new one, and saves it with the tables added
+	 */
+	static CohortStore updateStore() throws Exception
+	{
+		CohortStore store = new File(storeFn).exists() ? load(storeFn) : new CohortStore();
+
+		ArrayList<String> tableFns = new ArrayList<String>();
+		if(tableFilesArg.length() > 0)
+		{
+			tableFns.addAll(Arrays.asList(tableFilesArg.split(",")));
+		}
+		if(tableListFn.length() > 0)
+		{
+			Scanner listInput = new Scanner(new File(tableListFn));
+			while(listInput.hasNext())
+			{
+				String line = listInput.nextLine().trim();
+				if(line.length() > 0)
+				{
+					tableFns.add(line);
+				}
+			}
+			listInput.close();
+		}
+
+		for(String tableFn : tableFns)
+		{
+			store.addTable(tableFn);
+		}
+		if(tableFns.size() > 0 || !new File(storeFn).exists())
+		{
+			store.write(storeFn);
+		}
+		return store;
+	}
+
+	/*
+	 * Gets the ID of a sample, assigning it the next ID if it hasn't been seen before
+	 */
+	int getSampleId(String sample)
+	{
+		Integer id = sampleIds.get(sample);
+		if(id == null)
+		{
+			id = sampleNames.size();
+			sampleIds.put(sample, id);
+			sampleNames.add(sample);
+		}
+		return id;
+	}
+
+	/*
+	 * Records that a sample has a site
+	 */
+	void addSite(String chrName, int pos, int sampleId)
+	{
+		TreeMap<Integer, SampleBitmap> contigSites = sites.get(chrName);
+		if(contigSites == null)
+		{
+			contigSites = new TreeMap<Integer, SampleBitmap>();
+			sites.put(chrName, contigSites);
+		}
+		SampleBitmap samples = contigSites.get(pos);
+		if(samples == null)
+		{
+			samples = new SampleBitmap();
+			contigSites.put(pos, samples);
+		}
+		samples.add(sampleId);
+	}
+
+	/*
+	 * Adds every row of a site table to the store
+	 */
+	void addTable(String tableFn) throws Exception
+	{
+		Scanner input = new Scanner(new FileInputStream(new File(tableFn)));
+		if(!input.hasNext())
+		{
+			input.close();
+			return;
+		}
+		TableReader table = new TableReader(input.nextLine());
+		int chrCol = table.getColumn("CHR");
+		int posCol = table.getColumn("POS");
+		int sampleCol = table.hasColumn("SAMPLE") ? table.getColumn("SAMPLE") : -1;
+		int fileSampleId = sampleCol == -1 ? getSampleId(new File(tableFn).getName()) : -1;
+		while(input.hasNext())
+		{
+			String line = input.nextLine();
+			if(line.length() == 0)
+			{
+				continue;
+			}
+			table.setRow(line);
+			int sampleId = sampleCol == -1 ? fileSampleId : getSampleId(table.getString(sampleCol));
+			addSite(table.getString(chrCol), table.getInt(posCol), sampleId);
+		}
+		input.close();
+	}
+
+	/*
+	 * Gets the samples which have a site, which is empty if no sample has it
+	 */
+	SampleBitmap getSamples(String chrName, int pos)
+	{
+		TreeMap<Integer, SampleBitmap> contigSites = sites.get(chrName);
+		SampleBitmap samples = contigSites == null ? null : contigSites.get(pos);
+		return samples == null ? new SampleBitmap() : samples;
+	}
+
+	/*
+	 * Gets a comma-separated list of the names of the samples in a bitmap
+	 */
+	String getSampleList(SampleBitmap samples)
+	{
+		StringBuilder sb = new StringBuilder();
+		for(int id : samples.toArray())
+		{
+			if(sb.length() > 0)
+			{
+				sb.append(',');
+			}
+			sb.append(sampleNames.get(id));
+		}
+		return sb.toString();
+	}
+
+	/*
+	 * Writes every site which at least minSamples samples have
+	 */
+	void writeRecurrent(PrintWriter out, int minSamples)
+	{
+		out.println("CHR\tPOS\tSAMPLE_COUNT\tSAMPLES");
+		for(Map.Entry<String, TreeMap<Integer, SampleBitmap>> contig : sites.entrySet())
+		{
+			for(Map.Entry<Integer, SampleBitmap> site : contig.getValue().entrySet())
+			{
+				int count = site.getValue().cardinality();
+				if(count >= minSamples)
+				{
+					out.println(contig.getKey() + "\t" + site.getKey() + "\t" + count + "\t" + getSampleList(site.getValue()));
+				}
+			}
+		}
+	}
+
+	/*
+	 * Writes the store: the sample names, then each contig's positions, as variable-length differences from the
+	 * previous one, and sample bitmaps
+	 */
+	void write(String fn) throws Exception
+	{
+		// Write to a temporary file and move it over the store in one step, so readers see either the old store or
+		// the new one and a failed run leaves the old one alone
+		File storeFile = new File(fn);
+		File tmpFile = File.createTempFile(storeFile.getName() + ".", ".tmp", storeFile.getAbsoluteFile().getParentFile());
+		try
+		{
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+			out.writeInt(STORE_MAGIC);
+			out.writeInt(STORE_VERSION);
+			out.writeInt(sampleNames.size());
+			for(String name : sampleNames)
+			{
+				out.writeUTF(name);
+			}
+			out.writeInt(sites.size());
+			for(Map.Entry<String, TreeMap<Integer, SampleBitmap>> contig : sites.entrySet())
+			{
+				out.writeUTF(contig.getKey());
+				out.writeInt(contig.getValue().size());
+				int lastPos = 0;
+				for(Map.Entry<Integer, SampleBitmap> site : contig.getValue().entrySet())
+				{
+					VarInt.write(out, site.getKey() - lastPos);
+					lastPos = site.getKey();
+					site.getValue().write(out);
+				}
+			}
+			out.close();
+			Files.move(tmpFile.toPath(), storeFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally
+		{
+			// Only still there if something went wrong before the move
+			tmpFile.delete();
+		}
+	}
+
+	/*
+	 * Reads a store written by write
+	 */
+	static CohortStore load(String fn) throws Exception
+	{
+		DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(fn)));
+		if(input.readInt() != STORE_MAGIC || input.readInt() != STORE_VERSION)
+		{
+			input.close();
+			throw new Exception("Not a cohort store: " + fn);
+		}
+		CohortStore store = new CohortStore();
+		int numSamples = input.readInt();
+		for(int i = 0; i<numSamples; i++)
+		{
+			store.getSampleId(input.readUTF());
+		}
+		int numContigs = input.readInt();
+		for(int i = 0; i<numContigs; i++)
+		{
+			String chrName = input.readUTF();
+			TreeMap<Integer, SampleBitmap> contigSites = new TreeMap<Integer, SampleBitmap>();
+			int numSites = input.readInt();
+			int pos = 0;
+			for(int j = 0; j<numSites; j++)
+			{
+				pos += (int)VarInt.read(input);
+				contigSites.put(pos, SampleBitmap.read(input));
+			}
+			store.sites.put(chrName, contigSites);
+		}
+		input.close();
+		return store;
+	}
+
+	/*
+	 * A compressed set of sample IDs in the style of a roaring bitmap: IDs are split into blocks of 65536 by their
+	 * high 16 bits, and each block is stored as a sorted array of its low 16 bits while it is small, or as a plain
+	 * bitmap once it has more than 4096 members
+	 */
+	static class SampleBitmap
+	{
+		static final int ARRAY_LIMIT = 4096;
+		static final int BITMAP_WORDS = 1 << 10;
+
+		// The high 16 bits of each block, in increasing order, and the block's contents
+		char[] keys;
+		Container[] containers;
+		int numContainers;
+
+		SampleBitmap()
+		{
+			keys = new char[1];
+			containers = new Container[1];
+		}
+
+		/*
+		 * Adds an ID to the set
+		 */
+		void add(int id)
+		{
+			char key = (char)(id >>> 16);
+			int idx = Arrays.binarySearch(keys, 0, numContainers, key);
+			if(idx < 0)
+			{
+				idx = -idx - 1;
+				insertContainer(idx, key, new Container());
+			}
+			containers[idx].add((char)id);
+		}
+
+		/*
+		 * Whether or not an ID is in the set
+		 */
+		boolean contains(int id)
+		{
+			int idx = Arrays.binarySearch(keys, 0, numContainers, (char)(id >>> 16));
+			return idx >= 0 && containers[idx].contains((char)id);
+		}
+
+		/*
+		 * The number of IDs in the set
+		 */
+		int cardinality()
+		{
+			int res = 0;
+			for(int i = 0; i<numContainers; i++)
+			{
+				res += containers[i].cardinality;
+			}
+			return res;
+		}
+
+		void insertContainer(int idx, char key, Container container)
+		{
+			if(numContainers == keys.length)
+			{
+				keys = Arrays.copyOf(keys, 2 * numContainers);
+				containers = Arrays.copyOf(containers, 2 * numContainers);
+			}
+			System.arraycopy(keys, idx, keys, idx + 1, numContainers - idx);
+			System.arraycopy(containers, idx, containers, idx + 1, numContainers - idx);
+			keys[idx] = key;
+			containers[idx] = container;
+			numContainers++;
+		}
+
+		/*
+		 * The IDs in both this set and another one
+		 */
+		SampleBitmap and(SampleBitmap o)
+		{
+			SampleBitmap res = new SampleBitmap();
+			int i = 0, j = 0;
+			while(i < numContainers && j < o.numContainers)
+			{
+				if(keys[i] < o.keys[j]) i++;
+				else if(keys[i] > o.keys[j]) j++;
+				else
+				{
+					Container c = containers[i].and(o.containers[j]);
+					if(c.cardinality > 0)
+					{
+						res.insertContainer(res.numContainers, keys[i], c);
+					}
+					i++;
+					j++;
+				}
+			}
+			return res;
+		}
+
+		/*
+		 * The IDs in either this set or another one
+		 */
+		SampleBitmap or(SampleBitmap o)
+		{
+			SampleBitmap res = new SampleBitmap();
+			int i = 0, j = 0;
+			while(i < numContainers || j < o.numContainers)
+			{
+				if(j == o.numContainers || (i < numContainers && keys[i] < o.keys[j]))
+				{
+					res.insertContainer(res.numContainers, keys[i], containers[i].or(new Container()));
+					i++;
+				}
+				else if(i == numContainers || keys[i] > o.keys[j])
+				{
+					res.insertContainer(res.numContainers, o.keys[j], o.containers[j].or(new Container()));
+					j++;
+				}
+				else
+				{
+					res.insertContainer(res.numContainers, keys[i], containers[i].or(o.containers[j]));
+					i++;
+					j++;
+				}
+			}
+			return res;
+		}
+
+		/*
+		 * The IDs in the set in increasing order
+		 */
+		int[] toArray()
+		{
+			int[] res = new int[cardinality()];
+			int n = 0;
+			for(int i = 0; i<numContainers; i++)
+			{
+				int high = keys[i] << 16;
+				Container c = containers[i];
+				if(c.bits == null)
+				{
+					for(int j = 0; j<c.cardinality; j++)
+					{
+						res[n++] = high | c.values[j];
+					}
+				}
+				else
+				{
+					for(int word = 0; word<BITMAP_WORDS; word++)
+					{
+						long bits = c.bits[word];
+						while(bits != 0)
+						{
+							res[n++] = high | (word << 6) | Long.numberOfTrailingZeros(bits);
+							bits &= bits - 1;
+						}
+					}
+				}
+			}
+			return res;
+		}
+
+		void write(DataOutputStream out) throws Exception
+		{
+			out.writeShort(numContainers);
+			for(int i = 0; i<numContainers; i++)
+			{
+				Container c = containers[i];
+				out.writeChar(keys[i]);
+				out.writeInt(c.cardinality);
+				if(c.bits == null)
+				{
+					for(int j = 0; j<c.cardinality; j++)
+					{
+						out.writeChar(c.values[j]);
+					}
+				}
+				else
+				{
+					for(long word : c.bits)
+					{
+						out.writeLong(word);
+					}
+				}
+			}
+		}
+
+		static SampleBitmap read(DataInputStream input) throws Exception
+		{
+			SampleBitmap res = new SampleBitmap();
+			int n = input.readUnsignedShort();
+			for(int i = 0; i<n; i++)
+			{
+				char key = input.readChar();
+				Container c = new Container();
+				c.cardinality = input.readInt();
+				if(c.cardinality <= ARRAY_LIMIT)
+				{
+					c.values = new char[Math.max(1, c.cardinality)];
+					for(int j = 0; j<c.cardinality; j++)
+					{
+						c.values[j] = input.readChar();
+					}
+				}
+				else
+				{
+					c.values = null;
+					c.bits = new long[BITMAP_WORDS];
+					for(int j = 0; j<BITMAP_WORDS; j++)
+					{
+						c.bits[j] = input.readLong();
+					}
+				}
+				res.insertContainer(res.numContainers, key, c);
+			}
+			return res;
+		}
+
+		/*
+		 * The low 16 bits of the IDs in one block, either as a sorted array or as a bitmap
+		 */
+		static class Container
+		{
+			char[] values;
+			long[] bits;
+			int cardinality;
+
+			Container()
+			{
+				values = new char[4];
+			}
+
+			void add(char val)
+			{
+				if(bits != null)
+				{
+					long mask = 1L << (val & 63);
+					if((bits[val >>> 6] & mask) == 0)
+					{
+						bits[val >>> 6] |= mask;
+						cardinality++;
+					}
+					return;
+				}
+				int idx = Arrays.binarySearch(values, 0, cardinality, val);
+				if(idx >= 0)
+				{
+					return;
+				}
+				idx = -idx - 1;
+				if(cardinality == ARRAY_LIMIT)
+				{
+					toBitmap();
+					add(val);
+					return;
+				}
+				if(cardinality == values.length)
+				{
+					values = Arrays.copyOf(values, Math.min(ARRAY_LIMIT, 2 * cardinality));
+				}
+				System.arraycopy(values, idx, values, idx + 1, cardinality - idx);
+				values[idx] = val;
+				cardinality++;
+			}
+
+			boolean contains(char val)
+			{
+				if(bits != null)
+				{
+					return (bits[val >>> 6] & (1L << (val & 63))) != 0;
+				}
+				return Arrays.binarySearch(values, 0, cardinality, val) >= 0;
+			}
+
+			void toBitmap()
+			{
+				bits = new long[BITMAP_WORDS];
+				for(int i = 0; i<cardinality; i++)
+				{
+					bits[values[i] >>> 6] |= 1L << (values[i] & 63);
+				}
+				values = null;
+			}
+
+			/*
+			 * Gets the values of this container as a bitmap without changing it
+			 */
+			long[] getBits()
+			{
+				if(bits != null)
+				{
+					return bits;
+				}
+				long[] res = new long[BITMAP_WORDS];
+				for(int i = 0; i<cardinality; i++)
+				{
+					res[values[i] >>> 6] |= 1L << (values[i] & 63);
+				}
+				return res;
+			}
+
+			Container and(Container o)
+			{
+				Container res = new Container();
+				if(bits == null || o.bits == null)
+				{
+					// Check the members of the array against the other container
+					Container small = bits == null ? this : o, other = small == this ? o : this;
+					for(int i = 0; i<small.cardinality; i++)
+					{
+						if(other.contains(small.values[i]))
+						{
+							res.add(small.values[i]);
+						}
+					}
+					return res;
+				}
+				res.bits = new long[BITMAP_WORDS];
+				res.values = null;
+				for(int i = 0; i<BITMAP_WORDS; i++)
+				{
+					res.bits[i] = bits[i] & o.bits[i];
+					res.cardinality += Long.bitCount(res.bits[i]);
+				}
+				res.shrinkIfSmall();
+				return res;
+			}
+
+			Container or(Container o)
+			{
+				Container res = new Container();
+				if(bits == null && o.bits == null && cardinality + o.cardinality <= ARRAY_LIMIT)
+				{
+					for(int i = 0; i<cardinality; i++)
+					{
+						res.add(values[i]);
+					}
+					for(int i = 0; i<o.cardinality; i++)
+					{
+						res.add(o.values[i]);
+					}
+					return res;
+				}
+				long[] a = getBits(), b = o.getBits();
+				res.bits = new long[BITMAP_WORDS];
+				res.values = null;
+				for(int i = 0; i<BITMAP_WORDS; i++)
+				{
+					res.bits[i] = a[i] | b[i];
+					res.cardinality += Long.bitCount(res.bits[i]);
+				}
+				res.shrinkIfSmall();
+				return res;
+			}
+
+			/*
+			 * Switches back to a sorted array if a bitmap has few enough members
+			 */
+			void shrinkIfSmall()
+			{
+				if(bits == null || cardinality > ARRAY_LIMIT)
+				{
+					return;
+				}
+				values = new char[Math.max(1, cardinality)];
+				int n = 0;
+				for(int word = 0; word<BITMAP_WORDS; word++)
+				{
+					long w = bits[word];
+					while(w != 0)
+					{
+						values[n++] = (char)((word << 6) | Long.numberOfTrailingZeros(w));
+						w &= w - 1;
+					}
+				}
+				bits = null;
+			}
+		}
+	}
+}
@@ -1,22 +1,49 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Scanner;
 import java.util.TreeSet;
 
 public class GetProblematicKmers 
 {
+	// Identifies k-mer store files and the version of their layout
+	static final int STORE_MAGIC = 0x4b4d5331;
+	static final int STORE_VERSION = 2;
 	
-	static String tableFn = "";
-	static String ofn = "";
+	// Options are kept per instance so a server can run several jobs at once, each with its own instance
+	String tableFn = "";
+	String ofn = "";
 	
-	static int k = 6;
-	static int occurrenceThreshold = 30;
+	int k = 6;
+	int occurrenceThreshold = 30;
 	
-	static int uniquePositionsThreshold = 3;
+	int uniquePositionsThreshold = 3;
+	
+	// Optional pore model used to report and filter on how much each substitution shifts the signal
+	String modelFn = "";
+	double maxSignalShift = Double.MAX_VALUE;
+	
+	// Optional index of genome-wide k-mer counts used to report how enriched each k-mer is
+	String backgroundIndexFn = "";
+	
+	// Optional binary store of the k-mer counts, which is loaded, updated with the tables, and saved again
+	String storeFn = "";
+	String mergeStoresArg = "";
+	
+	// Tables whose k-mers have been counted, mapping the canonical path of each to its size and modification time,
+	// so a table isn't counted twice when it is given again or is already in a store
+	LinkedHashMap<String, String> countedTables = new LinkedHashMap<String, String>();
 	
 	static void usage()
 	{
@@ -24,16 +51,34 @@ public class GetProblematicKmers
 		System.out.println("  Example: java -cp src GetProblematicKmers table_file=table.txt out_file=kmers.txt");
 		System.out.println();
 		System.out.println("Required args:");
-		System.out.println("  table_file   (String) - table of sites (with context) which cause strand bias issues");
+		System.out.println("  table_file   (String) - comma-separated tables of sites (with context) which cause strand bias issues;");
+		System.out.println("                          may be left out if store_file or merge_store is given");
 		System.out.println("  out_file     (String) - file to record k-mers which seem to affect one strand but not the other");
 		System.out.println();
 		System.out.println("Optional args:");
 		System.out.println("  k                      (int)  [6] - length of k-mers to use");
 		System.out.println("  occurrence_threshold   (int) [20] - number of times a k-mer must affect strand bias to be considered problematic");
+		System.out.println("  model_file          (String) [\"\"] - pore model with k-mers of length k; adds SIGNAL_SHIFT and RC_SIGNAL_SHIFT columns");
+		System.out.println("                                      giving the level shift from each k-mer to its alt k-mer");
+		System.out.println("  max_signal_shift     (float) [none] - only report k-mers where the level shift on at least one strand is at most this");
+		System.out.println("  background_index    (String) [\"\"] - k-mer index of the genome built by KmerIndex with the same k; adds KMER_COUNT,");
+		System.out.println("                                      EXPECTED, ENRICHMENT and P_VALUE columns. These describe the k-mer as a whole:");
+		System.out.println("                                      KMER_COUNT is COUNT + RC_COUNT summed over every alt k-mer row of the k-mer,");
+		System.out.println("                                      and is compared to the k-mer's share of all counted k-mers under the genome's");
+		System.out.println("                                      k-mer frequencies, so rows with the same KMER have the same values");
+		System.out.println("  store_file          (String) [\"\"] - binary store of k-mer counts, samples and positions; if it exists the");
+		System.out.println("                                      tables are added on to it, and the updated counts are saved back to it.");
+		System.out.println("                                      The store remembers which tables it has counted, so tables already in it");
+		System.out.println("                                      are skipped, and ones which have changed since they were counted are an error");
+		System.out.println("  merge_store         (String) [\"\"] - comma-separated stores from other runs to add in before the tables; it is an");
+		System.out.println("                                      error for them to share a counted table with each other or store_file");
 		System.out.println();
 	}
 	
-	static void parseArgs(String[] args)
+	/*
+	 * Parses the command line options, returning false if any required ones are missing
+	 */
+	boolean parseArgs(String[] args)
 	{
 		for(String s : args)
 		{
@@ -50,123 +95,399 @@ public class GetProblematicKmers
 				else if(key.equalsIgnoreCase("out_file")) { ofn = val; } 
 				else if(key.equalsIgnoreCase("k")) { k = Integer.parseInt(val); }
 				else if(key.equalsIgnoreCase("occurrence_threshold")) { occurrenceThreshold = Integer.parseInt(val); }
+				else if(key.equalsIgnoreCase("model_file")) { modelFn = val; }
+				else if(key.equalsIgnoreCase("max_signal_shift")) { maxSignalShift = Double.parseDouble(val); }
+				else if(key.equalsIgnoreCase("background_index")) { backgroundIndexFn = val; }
+				else if(key.equalsIgnoreCase("store_file")) { storeFn = val; }
+				else if(key.equalsIgnoreCase("merge_store")) { mergeStoresArg = val; }
 			}
 		}
 		
-		if(tableFn.length() == 0 || ofn.length() == 0)
+		if((tableFn.length() == 0 && storeFn.length() == 0 && mergeStoresArg.length() == 0) || ofn.length() == 0)
+		{
+			return false;
+		}
+		return true;
+	}
+	
+	public static void main(String[] args) throws Exception
+	{
+		GetProblematicKmers tool = new GetProblematicKmers();
+		if(!tool.parseArgs(args))
 		{
 			usage();
 			System.exit(1);
 		}
+		tool.run();
 	}
 	
-	public static void main(String[] args) throws Exception
+	/*
+	 * Runs the tool with the options which have been parsed
+	 */
+	void run() throws Exception
 	{
-		parseArgs(args);
 		
-		Scanner input = new Scanner(new FileInputStream(new File(tableFn)));
-		PrintWriter out = new PrintWriter(new File(ofn));
-		
-		String headerLine = input.nextLine();
+		SubstitutionTable substitutions = null;
+		if(modelFn.length() > 0)
+		{
+			PoreModel model = PoreModel.load(modelFn);
+			if(model.k != k)
+			{
+				throw new Exception("Model has k-mers of length " + model.k + " but k is " + k);
+			}
+			substitutions = new SubstitutionTable(model);
+		}
 		
-		Table table = new Table(headerLine);
-		while(input.hasNext())
+		KmerIndex background = null;
+		if(backgroundIndexFn.length() > 0)
 		{
-			String line = input.nextLine();
-			if(line.length() == 0)
+			background = KmerIndex.load(backgroundIndexFn);
+			if(background.indexK != k)
 			{
-				continue;
+				throw new Exception("Background index has k-mers of length " + background.indexK + " but k is " + k);
 			}
-			table.addRow(line);
 		}
 		
+		// Start from the saved counts so only new tables have to be read, holding the store's lock until the updated
+		// counts are saved so jobs adding to the same store don't lose each other's tables
 		TreeSet<KmerData> kmerData = new TreeSet<KmerData>();
-		for(int i = 0; i<table.rows.size(); i++)
+		StoreLock lock = storeFn.length() > 0 ? new StoreLock(storeFn) : null;
+		try
 		{
-			table.updateKmerData(i, kmerData);
+			if(storeFn.length() > 0 && new File(storeFn).exists())
+			{
+				readStore(storeFn, kmerData);
+			}
+			for(String fn : mergeStoresArg.split(","))
+			{
+				if(fn.length() > 0)
+				{
+					readStore(fn, kmerData);
+				}
+			}
+			for(String fn : tableFn.split(","))
+			{
+				if(fn.length() > 0)
+				{
+					addTable(fn, kmerData);
+				}
+			}
+			if(storeFn.length() > 0)
+			{
+				writeStore(storeFn, kmerData);
+			}
+		}
+		finally
+		{
+			if(lock != null)
+			{
+				lock.release();
+			}
 		}
 		
-		out.println("KMER\tRC_KMER\tALT_KMER\tALT_RC_KMER\tCOUNT\tRC_COUNT\tSAMPLES\tPOSITIONS");
+		PrintWriter out = new PrintWriter(new File(ofn));
+		
+		// The total number of k-mers counted, which is what expected counts are a share of, and the number for each
+		// k-mer across all of its substitutions, since the background only knows how common the k-mer itself is
+		long totalCount = 0;
+		HashMap<String, Long> kmerCounts = new HashMap<String, Long>();
+		for(KmerData kd : kmerData)
+		{
+			totalCount += kd.count + kd.rcCount;
+			Long kmerCount = kmerCounts.get(kd.kmer);
+			kmerCounts.put(kd.kmer, (kmerCount == null ? 0 : kmerCount) + kd.count + kd.rcCount);
+		}
+		
+		out.println("KMER\tRC_KMER\tALT_KMER\tALT_RC_KMER\tCOUNT\tRC_COUNT\tSAMPLES\tPOSITIONS"
+				+ (substitutions == null ? "" : "\tSIGNAL_SHIFT\tRC_SIGNAL_SHIFT")
+				+ (background == null ? "" : "\tKMER_COUNT\tEXPECTED\tENRICHMENT\tP_VALUE"));
 		for(KmerData kd : kmerData)
 		{
 			String s = kd.kmer;
 			String alt = kd.altKmer;
-			if(kd.count + kd.rcCount >= occurrenceThreshold || kd.uniquePositions.size() >= uniquePositionsThreshold)
+			if(kd.count + kd.rcCount >= occurrenceThreshold || kd.positions.size() >= uniquePositionsThreshold)
 			{
 				String rc = reverseComplement(s);
 				String rcAlt = reverseComplement(alt);
-				String sampleList = "";
-				String posList = "";
-				HashSet<String> uniqueSamples = new HashSet<String>();
-				HashSet<Integer> uniquePositions = new HashSet<Integer>();
-				for(int i = 0; i<kd.samples.size(); i++)
+				
+				float shift = Float.NaN, rcShift = Float.NaN;
+				if(substitutions != null)
 				{
-					if(!uniqueSamples.contains(kd.samples.get(i)))
+					shift = substitutions.getShift(s, alt);
+					rcShift = substitutions.getShift(rc, rcAlt);
+					
+					// K-mers not in the model are kept since there is nothing to judge them by
+					if(Math.abs(shift) > maxSignalShift && Math.abs(rcShift) > maxSignalShift)
 					{
-						if(sampleList.length() > 0)
-						{
-							sampleList += ", ";
-						}
-						sampleList += kd.samples.get(i);
+						continue;
 					}
-					if(!uniquePositions.contains(kd.positions.get(i)))
+				}
+				
+				StringBuilder sampleList = new StringBuilder();
+				for(String sample : kd.samples)
+				{
+					if(sampleList.length() > 0)
 					{
-						if(posList.length() > 0)
-						{
-							posList += ", ";
-						}
-						posList += kd.positions.get(i);
+						sampleList.append(", ");
 					}
-					
-					uniqueSamples.add(kd.samples.get(i));
-					uniquePositions.add(kd.positions.get(i));
+					sampleList.append(sample);
+				}
+				StringBuilder posList = new StringBuilder();
+				for(int pos : kd.positions)
+				{
+					if(posList.length() > 0)
+					{
+						posList.append(", ");
+					}
+					posList.append(pos);
 				}
 				
-				out.printf("%s\t%s\t%s\t%s\t%s\t%s\t%s\t%s\n", s, rc, alt, rcAlt, kd.count, kd.rcCount, sampleList, posList);
+				String enrichment = "";
+				if(background != null)
+				{
+					long observed = kmerCounts.get(s);
+					double expected = totalCount * background.getFrequency(s);
+					double pValue = Double.isNaN(expected) ? Double.NaN : KmerIndex.poissonUpperTail(observed, expected);
+					enrichment = String.format("\t%d\t%.6f\t%.6f\t%.6g", observed, expected, observed / expected, pValue);
+				}
+				
+				out.printf("%s\t%s\t%s\t%s\t%s\t%s\t%s\t%s%s%s\n", s, rc, alt, rcAlt, kd.count, kd.rcCount, sampleList, posList,
+						substitutions == null ? "" : String.format("\t%.6f\t%.6f", shift, rcShift), enrichment);
 			}
 		}
 		
-		input.close();
 		out.close();
 	}
 	
+	/*
+	 * Adds the k-mers around every site in a table, unless the table has already been counted
+	 */
+	void addTable(String fn, TreeSet<KmerData> kmerData) throws Exception
+	{
+		File tableFile = new File(fn);
+		String path = tableFile.getCanonicalPath();
+		String version = tableFile.length() + " " + tableFile.lastModified();
+		String counted = countedTables.get(path);
+		if(counted != null)
+		{
+			if(!counted.equals(version))
+			{
+				throw new Exception("Table " + fn + " has changed since it was counted, and its old counts can't be taken back out");
+			}
+			System.out.println("Skipping " + fn + " since it has already been counted");
+			return;
+		}
+		countedTables.put(path, version);
+		
+		Scanner input = new Scanner(new FileInputStream(new File(fn)));
+		if(!input.hasNext())
+		{
+			input.close();
+			return;
+		}
+		Table table = new Table(input.nextLine());
+		while(input.hasNext())
+		{
+			String line = input.nextLine();
+			if(line.length() == 0)
+			{
+				continue;
+			}
+			table.updateKmerData(line, kmerData);
+		}
+		input.close();
+	}
+	
+	/*
+	 * Adds the k-mers in a store to the ones already counted.  Version 1 stores don't list their tables, so tables
+	 * in them can't be recognized if they are given again.
+	 */
+	void readStore(String fn, TreeSet<KmerData> kmerData) throws Exception
+	{
+		DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(fn)));
+		int version = input.readInt() == STORE_MAGIC ? input.readInt() : -1;
+		if(version != 1 && version != STORE_VERSION)
+		{
+			input.close();
+			throw new Exception("Not a k-mer store: " + fn);
+		}
+		int storeK = input.readInt();
+		if(storeK != k)
+		{
+			input.close();
+			throw new Exception("Store " + fn + " has k-mers of length " + storeK + " but k is " + k);
+		}
+		
+		if(version >= 2)
+		{
+			long numTables = VarInt.read(input);
+			for(long i = 0; i<numTables; i++)
+			{
+				String path = input.readUTF();
+				String tableVersion = input.readUTF();
+				if(countedTables.containsKey(path))
+				{
+					input.close();
+					throw new Exception("Store " + fn + " includes " + path + ", which has already been counted");
+				}
+				countedTables.put(path, tableVersion);
+			}
+		}
+		
+		String[] sampleNames = new String[(int)VarInt.read(input)];
+		for(int i = 0; i<sampleNames.length; i++)
+		{
+			sampleNames[i] = input.readUTF();
+		}
+		
+		long numKmers = VarInt.read(input);
+		byte[] kmerBytes = new byte[k];
+		for(long i = 0; i<numKmers; i++)
+		{
+			input.readFully(kmerBytes);
+			String kmer = new String(kmerBytes, "US-ASCII");
+			input.readFully(kmerBytes);
+			String altKmer = new String(kmerBytes, "US-ASCII");
+			KmerData kd = new KmerData(kmer, altKmer);
+			kd.count = (int)VarInt.read(input);
+			kd.rcCount = (int)VarInt.read(input);
+			long numSamples = VarInt.read(input);
+			for(long j = 0; j<numSamples; j++)
+			{
+				kd.samples.add(sampleNames[(int)VarInt.read(input)]);
+			}
+			long numPositions = VarInt.read(input);
+			int pos = 0;
+			for(long j = 0; j<numPositions; j++)
+			{
+				pos += (int)VarInt.readSigned(input);
+				kd.positions.add(pos);
+			}
+			
+			KmerData existing = kmerData.floor(kd);
+			if(existing != null && existing.compareTo(kd) == 0)
+			{
+				existing.merge(kd);
+			}
+			else
+			{
+				kmerData.add(kd);
+			}
+		}
+		input.close();
+	}
+	
+	/*
+	 * Saves the k-mer counts: the tables counted with their sizes and modification times, a dictionary of sample
+	 * names, then each k-mer and alt k-mer followed by its counts,
+	 * sample IDs, and positions as differences from the previous one, all as variable-length integers
+	 */
+	void writeStore(String fn, TreeSet<KmerData> kmerData) throws Exception
+	{
+		HashMap<String, Integer> sampleIds = new HashMap<String, Integer>();
+		ArrayList<String> sampleNames = new ArrayList<String>();
+		for(KmerData kd : kmerData)
+		{
+			for(String sample : kd.samples)
+			{
+				if(!sampleIds.containsKey(sample))
+				{
+					sampleIds.put(sample, sampleNames.size());
+					sampleNames.add(sample);
+				}
+			}
+		}
+		
+		// Write to a temporary file first and move it over the store in one step, so a failed run doesn't leave a
+		// broken store behind and readers never see a missing or partly written one
+		File storeFile = new File(fn);
+		File tmpFile = File.createTempFile(storeFile.getName() + ".", ".tmp", storeFile.getAbsoluteFile().getParentFile());
+		try
+		{
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+			try
+			{
+				out.writeInt(STORE_MAGIC);
+				out.writeInt(STORE_VERSION);
+				out.writeInt(k);
+				VarInt.write(out, countedTables.size());
+				for(String path : countedTables.keySet())
+				{
+					out.writeUTF(path);
+					out.writeUTF(countedTables.get(path));
+				}
+				VarInt.write(out, sampleNames.size());
+				for(String sample : sampleNames)
+				{
+					out.writeUTF(sample);
+				}
+				VarInt.write(out, kmerData.size());
+				for(KmerData kd : kmerData)
+				{
+					out.write(kd.kmer.getBytes("US-ASCII"));
+					out.write(kd.altKmer.getBytes("US-ASCII"));
+					VarInt.write(out, kd.count);
+					VarInt.write(out, kd.rcCount);
+					VarInt.write(out, kd.samples.size());
+					for(String sample : kd.samples)
+					{
+						VarInt.write(out, sampleIds.get(sample));
+					}
+					VarInt.write(out, kd.positions.size());
+					int lastPos = 0;
+					for(int pos : kd.positions)
+					{
+						VarInt.writeSigned(out, pos - lastPos);
+						lastPos = pos;
+					}
+				}
+			}
+			finally
+			{
+				out.close();
+			}
+			Files.move(tmpFile.toPath(), storeFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally
+		{
+			// Already gone if the move succeeded
+			tmpFile.delete();
+		}
+	}
+	
+	/*
+	 * Counts for one k-mer and alt k-mer, with the distinct samples and positions it was seen at in the order they were first seen
+	 */
 	static class KmerData implements Comparable<KmerData>
 	{
 		int count = 0;
 		int rcCount = 0;
 		String kmer;
 		String altKmer;
-		ArrayList<String> samples;
-		ArrayList<Integer> positions;
-		HashSet<Integer> uniquePositions;
-		KmerData(String kmer, String altKmer, int pos, String sample)
+		LinkedHashSet<String> samples;
+		LinkedHashSet<Integer> positions;
+		
+		KmerData(String kmer, String altKmer)
 		{
-			count = 0;
-			rcCount = 0;
 			this.kmer = kmer;
 			this.altKmer = altKmer;
-			positions = new ArrayList<Integer>();
-			samples = new ArrayList<String>();
-			uniquePositions = new HashSet<Integer>();
+			samples = new LinkedHashSet<String>();
+			positions = new LinkedHashSet<Integer>();
+		}
+		
+		KmerData(String kmer, String altKmer, int pos, String sample)
+		{
+			this(kmer, altKmer);
 			samples.add(sample);
 			positions.add(pos);
-			uniquePositions.add(pos);
 		}
 		
 		void merge(KmerData kd)
 		{
 			count = count + kd.count;
 			rcCount = rcCount + kd.rcCount;
-			for(String sample : kd.samples)
-			{
-				samples.add(sample);
-			}
-			
-			for(int pos : kd.positions)
-			{
-				positions.add(pos);
-				uniquePositions.add(pos);
-			}
+			samples.addAll(kd.samples);
+			positions.addAll(kd.positions);
 		}
 		
 		@Override
@@ -180,61 +501,46 @@ public class GetProblematicKmers
 		}
 	}
 	
-	static class Table
+	class Table
 	{
-		// Map of category names to which column they correspond to
-		HashMap<String, Integer> categoryToIndex;
-		
-		// A list of data entries (rows in the table)
-		ArrayList<String[]> rows;
-		
-		/*
-		 * Parses the header line and initializes a table with those fields
-		 */
-		Table(String headerLine)
-		{
-			categoryToIndex = new HashMap<String, Integer>();
-			String[] categories = headerLine.split("\t");
-			for(int i = 0; i<categories.length; i++)
-			{
-				categoryToIndex.put(categories[i].toLowerCase(), i);
-			}
-			
-			rows = new ArrayList<String[]>();
-		}
+		// Reader for the site table, with the columns we use resolved once from the header
+		TableReader reader;
+		int plusMafCol, minusMafCol, refCol, posCol, sampleCol;
+		int contextCol, contextRcCol, plusFreqCol, minusFreqCol;
 		
-		/*
-		 * Adds a row to the table based on a TSV row
-		 */
-		void addRow(String line)
-		{
-			// Ignore empty lines
-			if(line.length() == 0)
-			{
-				return;
-			}
-			String[] tokens = line.split("\t");
-			
-			rows.add(tokens);
-		}
+		// Scratch space for parsing allele frequency lists
+		int[] alleleFreqs;
 		
 		/*
-		 * Gets a particular field's value in a given row
+		 * Parses the header line and finds the columns needed for counting k-mers
 		 */
-		String getValue(int rowIndex, String category)
+		Table(String headerLine) throws Exception
 		{
-			return rows.get(rowIndex)[categoryToIndex.get(category.toLowerCase())];
+			reader = new TableReader(headerLine);
+			plusMafCol = reader.getColumn("PLUS_MAF");
+			minusMafCol = reader.getColumn("MINUS_MAF");
+			refCol = reader.getColumn("REF");
+			posCol = reader.getColumn("POS");
+			sampleCol = reader.hasColumn("SAMPLE") ? reader.getColumn("SAMPLE") : -1;
+			contextCol = reader.getColumn("REF_CONTEXT");
+			contextRcCol = reader.getColumn("REF_CONTEXT_RC");
+			plusFreqCol = reader.getColumn("PLUS_STRAND_FREQUENCIES");
+			minusFreqCol = reader.getColumn("MINUS_STRAND_FREQUENCIES");
+			alleleFreqs = new int[6];
 		}
 		
-		void updateKmerData(int rowIndex, TreeSet<KmerData> kmerData)
+		void updateKmerData(String line, TreeSet<KmerData> kmerData) throws Exception
 		{
-			double plusMaf = Double.parseDouble(getValue(rowIndex, "PLUS_MAF"));
-			double minusMaf = Double.parseDouble(getValue(rowIndex, "MINUS_MAF"));
+			reader.setRow(line);
+			double plusMaf = reader.getDouble(plusMafCol);
+			double minusMaf = reader.getDouble(minusMafCol);
 			
 			boolean plusStrand = plusMaf > minusMaf;
-			String context = getValue(rowIndex, plusStrand ? "REF_CONTEXT" : "REF_CONTEXT_RC");
+			String context = reader.getString(plusStrand ? contextCol : contextRcCol);
 			
-			char altChar = getAlt(rowIndex, plusStrand);
+			char altChar = getAlt(plusStrand);
+			int pos = reader.getInt(posCol);
+			String sample = sampleCol == -1 ? "" : reader.getString(sampleCol);
 			
 			for(int i = 0; i+k <= context.length(); i++)
 			{
@@ -266,7 +572,7 @@ public class GetProblematicKmers
 				boolean usingMainKmer = kmer.compareTo(rcKmer) <= 0;
 				String key = usingMainKmer ? kmer : rcKmer;
 				String altKey = usingMainKmer ? altKmer : altRcKmer;
-				KmerData cur = new KmerData(key, altKey, Integer.parseInt(getValue(rowIndex, "POS")), getValue(rowIndex, "SAMPLE"));
+				KmerData cur = new KmerData(key, altKey, pos, sample);
 				if(!kmerData.contains(cur))
 				{
 					kmerData.add(cur);
@@ -288,15 +594,15 @@ public class GetProblematicKmers
 			}
 		}
 		
-		char getAlt(int rowIndex, boolean plusStrand)
+		char getAlt(boolean plusStrand) throws Exception
 		{
-			int refVal =  GetStrandDifferences.charToInt(getValue(rowIndex, "REF").charAt(0));
-			String[] alleleFreqs = getValue(rowIndex, plusStrand ? "PLUS_STRAND_FREQUENCIES" : "MINUS_STRAND_FREQUENCIES").split(",");
+			int refVal =  GetStrandDifferences.charToInt(reader.getChar(refCol, 0));
+			reader.getIntList(plusStrand ? plusFreqCol : minusFreqCol, alleleFreqs);
 			int maxi = -1;
 			int maxval = 0;
 			for(int i = 0; i<4; i++)
 			{
-				int count = Integer.parseInt(alleleFreqs[i]);
+				int count = alleleFreqs[i];
 				if(i == refVal)
 				{
 					continue;
@@ -1,27 +1,76 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Scanner;
 
 public class GetStrandDifferences
 {
-	static String mpileupFn = "", ofn = "", genomeFn = "";
+	// Options are kept per instance so a server can run several jobs at once, each with its own instance
+	String mpileupFn = "", ofn = "", genomeFn = "";
 	
 	static int maxLen = 31000;
-	static int minDepth = 30;
+	int minDepth = 30;
 	
-	static int contextLength = 10;
+	// Bases with a lower Phred quality than this are not counted
+	int minBaseQuality = 0;
 	
-	static double mafRatio = 2.0;
-	static double minMaf = 0.15;
+	// If positive, stop counting a strand's bases once it has this many unambiguous ones
+	int maxStrandDepth = 0;
 	
-	static String sampleName = "";
+	int contextLength = 10;
 	
-	static String mode = "STRAND_DIFF";
+	double mafRatio = 2.0;
+	double minMaf = 0.15;
+	
+	String sampleName = "";
+	
+	// If set, only positions in this region are processed, with the start and end stored 0-based and end-exclusive
+	String regionChr = "";
+	int regionStart = 0, regionEnd = Integer.MAX_VALUE;
+	
+	String mode = "STRAND_DIFF";
+	
+	// If set, annotate the sites in this VCF with strand frequencies instead of scanning the whole mpileup
+	String vcfFn = "";
+	
+	// If set, write per-window strand summaries here, over fixed-size windows or the regions in a BED file
+	String windowFn = "";
+	int windowSize = 100;
+	String regionsFn = "";
+	
+	// If set, per-position strand counts are saved here on the first run and read back on later ones
+	String countCacheFn = "";
+	
+	// The number of threads used to compress block-gzip output
+	int threads = Runtime.getRuntime().availableProcessors();
 	
 	// These are used when incorporating gene annotations
-	static HashMap<String, String> genome;
+	// Contigs are kept in the order they appear in the genome file
+	LinkedHashMap<String, String> genome;
+	
+	// When running as a server, genomes which have already been read, keyed by path, along with the modification
+	// time of the file each was read from so a genome which has changed replaces its old copy
+	static HashMap<String, LinkedHashMap<String, String>> residentGenomes = null;
+	static HashMap<String, Long> residentGenomeTimes = null;
 	
 	static void usage()
 	{
@@ -35,17 +84,45 @@ public class GetStrandDifferences
 		System.out.println();
 		System.out.println("Optional args:");
 		System.out.println("  min_depth  (int)     [30]            - the minimum unambiguous depth that must be present on each strand for a position to be highlighted");
+		System.out.println("  min_base_quality (int) [0]           - the minimum Phred base quality for a base in the pileup to be counted");
+		System.out.println("  max_strand_depth (int) [0]           - if positive, a strand with more unambiguous bases than this has its A/C/G/T");
+		System.out.println("                                       counts replaced by those of a uniform random sample of n = max_strand_depth");
+		System.out.println("                                       of them (N and deletion counts stay complete), and a CAPPED column marks");
+		System.out.println("                                       sites where either strand was sampled; must be at least min_depth.");
+		System.out.println("                                       By Hoeffding's inequality, a sampled strand's MAF is within");
+		System.out.println("                                       t = sqrt(ln(6/a)/(2n)) of its MAF over all of its bases with probability at");
+		System.out.println("                                       least 1-a: t = 0.049 at 95% for n = 1000, and 0.015 for n = 10000. A CAPPED");
+		System.out.println("                                       site whose MAFs are within t of min_maf or maf_ratio may be highlighted");
+		System.out.println("                                       differently than at full depth. Not applied to vcf_file annotation");
 		System.out.println("  context     (int)    [10]            - the number of bases to report on either side of highlighted sites");
 		System.out.println("  maf_ratio   (float)  [2.0]           - the minimum ratio of MAFs across strands needed to highlight a site");
 		System.out.println("  min_maf     (float)  [0.15]          - the minimum MAF on the more frequent strand needed to highlight a site");
 		System.out.println("  sample_name (String) [\"\"]          - the sample name to be reported in its own column");
+		System.out.println("  region      (String) [\"\"]          - only process this contig, or part of it given as contig:start-end (1-based, inclusive)");
 		System.out.println("  mode        (String) [STRAND_DIFF]   - one of {STRAND_DIFF, TRUE_VAR} indicating which sites to output");
 		System.out.println("    STRAND_DIFF: Sites where there is a large difference between strands");
 		System.out.println("    TRUE_VAR   : Sites where both strands indicate a variant");
+		System.out.println("  vcf_file    (String) [\"\"]          - coordinate-sorted VCF of called sites; if given, out_file is a copy of it with");
+		System.out.println("                                       PLUS_FREQ, MINUS_FREQ, PLUS_MAF and MINUS_MAF added to the INFO of each site");
+		System.out.println("                                       (the mpileup must be sorted in the same contig order as the genome)");
+		System.out.println("  window_file  (String) [\"\"]         - file to write per-window summaries to: mean plus/minus unambiguous depth,");
+		System.out.println("                                       the number of sites with min_depth on both strands and how many of them were");
+		System.out.println("                                       highlighted, and the mean absolute difference between the strands' MAFs");
+		System.out.println("  window_size  (int)    [100]          - length of the windows tiling each contig in window_file");
+		System.out.println("  regions_file (String) [\"\"]         - BED file of regions to summarize in window_file instead of fixed windows");
+		System.out.println("  count_cache  (String) [\"\"]         - binary file of per-position strand counts; written from the mpileup if it");
+		System.out.println("                                       is missing or was made from a different mpileup, min_base_quality,");
+		System.out.println("                                       max_strand_depth or region, and read instead of the mpileup otherwise");
+		System.out.println("  threads      (int)    [# of cores]   - threads used to compress out_file when it ends in .gz, in which case it is");
+		System.out.println("                                       written as block-gzip with a tabix index in out_file.tbi");
 		System.out.println();
 	}
 	
-	static void parseArgs(String[] args)
+	/*
+	 * Parses the command line options, returning false if any required ones are missing and throwing an exception
+	 * if they can't be used together
+	 */
+	boolean parseArgs(String[] args) throws Exception
 	{
 		for(String s : args)
 		{
@@ -62,10 +139,19 @@ public class GetStrandDifferences
 				else if(key.equalsIgnoreCase("out_file")) { ofn = val; } 
 				else if(key.equalsIgnoreCase("genome_file")) { genomeFn = val; } 
 				else if(key.equalsIgnoreCase("min_depth")) { minDepth = Integer.parseInt(val); }
+				else if(key.equalsIgnoreCase("min_base_quality")) { minBaseQuality = Integer.parseInt(val); }
+				else if(key.equalsIgnoreCase("max_strand_depth")) { maxStrandDepth = Integer.parseInt(val); }
 				else if(key.equalsIgnoreCase("context")) { contextLength = Integer.parseInt(val); }
 				else if(key.equalsIgnoreCase("maf_ratio")) { mafRatio = Double.parseDouble(val); }
 				else if(key.equalsIgnoreCase("min_maf")) { minMaf = Double.parseDouble(val); }
 				else if(key.equalsIgnoreCase("sample_name")) { sampleName = val; }
+				else if(key.equalsIgnoreCase("region")) { parseRegion(val); }
+				else if(key.equalsIgnoreCase("vcf_file")) { vcfFn = val; }
+				else if(key.equalsIgnoreCase("window_file")) { windowFn = val; }
+				else if(key.equalsIgnoreCase("window_size")) { windowSize = Integer.parseInt(val); }
+				else if(key.equalsIgnoreCase("regions_file")) { regionsFn = val; }
+				else if(key.equalsIgnoreCase("count_cache")) { countCacheFn = val; }
+				else if(key.equalsIgnoreCase("threads")) { threads = Integer.parseInt(val); }
 				else if(key.equalsIgnoreCase("mode"))
 				{
 					if(val.equalsIgnoreCase("strand_diff")) { mode = "STRAND_DIFF"; }
@@ -76,21 +162,113 @@ public class GetStrandDifferences
 		
 		if(mpileupFn.length() == 0 || ofn.length() == 0)
 		{
-			usage();
-			System.exit(1);
+			return false;
 		}
 		
 		if(genomeFn.length() == 0)
 		{
-			usage();
-			System.exit(1);;
+			return false;
 		}
+		
+		if(windowFn.length() > 0 && regionsFn.length() == 0 && windowSize <= 0)
+		{
+			return false;
+		}
+		
+		// A cap below the minimum depth would keep every site from being highlighted
+		if(maxStrandDepth > 0 && maxStrandDepth < minDepth)
+		{
+			throw new Exception("max_strand_depth (" + maxStrandDepth + ") must be at least min_depth (" + minDepth + ")");
+		}
+		return true;
+	}
+	
+	/*
+	 * Parses a region given as either a contig name or contig:start-end
+	 */
+	void parseRegion(String region)
+	{
+		regionChr = region;
+		regionStart = 0;
+		regionEnd = Integer.MAX_VALUE;
+		
+		// Contig names can contain colons, so only treat the suffix as a range if it looks like one
+		int colonIdx = region.lastIndexOf(':');
+		if(colonIdx == -1)
+		{
+			return;
+		}
+		String[] range = region.substring(colonIdx + 1).replace(",", "").split("-");
+		if(range.length != 2 || !range[0].matches("[0-9]+") || !range[1].matches("[0-9]+"))
+		{
+			return;
+		}
+		regionChr = region.substring(0, colonIdx);
+		regionStart = Integer.parseInt(range[0]) - 1;
+		regionEnd = Integer.parseInt(range[1]);
 	}
 	
 	public static void main(String[] args) throws Exception
 	{
-		parseArgs(args);
-		genome = new HashMap<String, String>();
+		GetStrandDifferences tool = new GetStrandDifferences();
+		if(!tool.parseArgs(args))
+		{
+			usage();
+			System.exit(1);
+		}
+		tool.run();
+	}
+	
+	/*
+	 * Runs the tool with the options which have been parsed
+	 */
+	void run() throws Exception
+	{
+		genome = loadGenome(genomeFn);
+		
+		if(vcfFn.length() > 0)
+		{
+			annotateVcf(mpileupFn, vcfFn, ofn);
+		}
+		else
+		{
+			findDifferences(mpileupFn, ofn);
+		}
+		
+	}
+	
+	/*
+	 * Gets a genome, reusing the resident copy when running as a server and it was read from the file as it is now
+	 */
+	static LinkedHashMap<String, String> loadGenome(String genomeFn) throws Exception
+	{
+		if(residentGenomes == null)
+		{
+			return readGenome(genomeFn);
+		}
+		String residentKey = new File(genomeFn).getCanonicalPath();
+		long lastModified = new File(genomeFn).lastModified();
+		synchronized(residentGenomes)
+		{
+			LinkedHashMap<String, String> genome = residentGenomes.get(residentKey);
+			if(genome == null || residentGenomeTimes.get(residentKey) != lastModified)
+			{
+				// Dropping the old copy first lets it be collected while the new one is read
+				residentGenomes.remove(residentKey);
+				genome = readGenome(genomeFn);
+				residentGenomes.put(residentKey, genome);
+				residentGenomeTimes.put(residentKey, lastModified);
+			}
+			return genome;
+		}
+	}
+	
+	/*
+	 * Reads in the genome, keeping contigs in the order they appear in the file
+	 */
+	static LinkedHashMap<String, String> readGenome(String genomeFn) throws Exception
+	{
+		LinkedHashMap<String, String> genome = new LinkedHashMap<String, String>();
 
 		// Read in genome
 		Scanner genomeInput = new Scanner(new FileInputStream(new File(genomeFn)));
@@ -123,23 +301,112 @@ public class GetStrandDifferences
 			genome.put(refName, seq.toString());
 		}
 		genomeInput.close();
+		return genome;
+	}
+	
+	/*
+	 * Processes an mpileup file and highlight sites with major strand differences
+	 */
+	void findDifferences(String mpileupFn, String ofn) throws Exception
+	{
+		Mpileup mp = null;
+		if(countCacheFn.length() > 0)
+		{
+			mp = new Mpileup();
+			if(!mp.readCache(countCacheFn, mpileupFn))
+			{
+				mp = null;
+			}
+		}
+		if(mp != null)
+		{
+			System.out.printf("Read counts at %d positions from %s\n", mp.linesDecoded, countCacheFn);
+		}
+		else
+		{
+			// Windows summarize depth at every position, and a count cache has to work for any later min_depth,
+			// so low-depth lines can only be skipped when neither is being made
+			mp = new Mpileup(mpileupFn, windowFn.length() == 0 && countCacheFn.length() == 0);
+			System.out.printf("Read %d mpileup lines: %d outside the region, %d below depth %d, %d decoded\n",
+					mp.linesRead, mp.skippedOutsideRegion, mp.skippedLowDepth, 2 * minDepth, mp.linesDecoded);
+			if(countCacheFn.length() > 0)
+			{
+				mp.writeCache(countCacheFn, mpileupFn);
+			}
+		}
+		
+		// Output ending in .gz is block-gzipped and indexed, which needs the offset of every record
+		BgzfWriter bgzf = null;
+		TabixIndex index = null;
+		PrintWriter out;
+		if(ofn.endsWith(".gz"))
+		{
+			bgzf = new BgzfWriter(new File(ofn), threads);
+			index = new TabixIndex(1);
+			out = new PrintWriter(new OutputStreamWriter(bgzf));
+		}
+		else
+		{
+			out = new PrintWriter(new File(ofn));
+		}
+		
+		// Running totals of per-position strand statistics for summarizing windows
+		HashMap<String, StrandPrefixSums> prefixSums = windowFn.length() == 0 ? null : new HashMap<String, StrandPrefixSums>();
 		
-		findDifferences(mpileupFn, ofn);
+		boolean written = false;
+		try
+		{
+			writeSites(mp, out, bgzf, index, prefixSums);
+			out.close();
+			if(index != null)
+			{
+				index.write(new File(ofn + ".tbi"), bgzf);
+			}
+			written = true;
+		}
+		finally
+		{
+			if(!written)
+			{
+				// Stop the compression threads and remove the partial output so it can't be mistaken for a finished table
+				if(bgzf != null)
+				{
+					bgzf.abort();
+				}
+				else
+				{
+					out.close();
+				}
+				new File(ofn).delete();
+				new File(ofn + ".tbi").delete();
+			}
+		}
 		
+		if(prefixSums != null)
+		{
+			writeWindows(prefixSums, windowFn);
+		}
 	}
 	
 	/*
-	 * Processes an mpileup file and highlight sites with major strand differences
+	 * Writes the header and every highlighted site, adding each record to the index if there is one
+	 * and each position to the prefix sums if they are being kept
 	 */
-	static void findDifferences(String mpileupFn, String ofn) throws Exception
+	void writeSites(Mpileup mp, PrintWriter out, BgzfWriter bgzf, TabixIndex index, HashMap<String, StrandPrefixSums> prefixSums) throws Exception
 	{
-		Mpileup mp = new Mpileup(mpileupFn);
-		PrintWriter out = new PrintWriter(new File(ofn));
-		out.printf("CHR\tPOS\tREF\tPLUS_STRAND_FREQUENCIES\tMINUS_STRAND_FREQUENCIES\tPLUS_MAF\tMINUS_MAF\tREF_CONTEXT\tREF_CONTEXT_RC%s\n",
-				(sampleName.length() == 0 ? "" : ("\t" + "SAMPLE")));
-		for(String chrName : mp.allFrequencies.keySet())
+		out.printf("CHR\tPOS\tREF\tPLUS_STRAND_FREQUENCIES\tMINUS_STRAND_FREQUENCIES\tPLUS_MAF\tMINUS_MAF\tREF_CONTEXT\tREF_CONTEXT_RC%s%s\n",
+				(sampleName.length() == 0 ? "" : ("\t" + "SAMPLE")), (maxStrandDepth > 0 ? "\tCAPPED" : ""));
+		
+		for(String chrName : getContigOrder(mp.allFrequencies.keySet()))
 		{
 			int[][][] counts = mp.allFrequencies.get(chrName);
+			BitSet capped = mp.cappedSites.get(chrName);
+			StrandPrefixSums sums = null;
+			if(prefixSums != null)
+			{
+				sums = new StrandPrefixSums(counts.length);
+				prefixSums.put(chrName, sums);
+			}
 			for(int i = 0; i<counts.length; i++)
 			{
 				int[] plusCounts = counts[i][1];
@@ -150,23 +417,22 @@ public class GetStrandDifferences
 				
 				if(unambigPlusCov < minDepth || unambigMinusCov < minDepth)
 				{
+					if(sums != null)
+					{
+						sums.add(i, unambigPlusCov, unambigMinusCov, false, false, 0);
+					}
 					continue;
 				}
 				
-				int maxPlus = -1, maxMinus = -1;
-				
-				char refChar = genome.get(chrName).charAt(i);
-				int refVal = charToInt(refChar);
-				
-				for(int j = 0; j<4; j++)
+				if(!genome.containsKey(chrName))
 				{
-					if(j == refVal) continue;
-					if(maxPlus == -1 || plusCounts[j] > plusCounts[maxPlus]) maxPlus = j;
-					if(maxMinus == -1 || minusCounts[j] > minusCounts[maxMinus]) maxMinus = j;
+					throw new Exception("Mpileup contig is not in the genome: " + chrName);
 				}
+				char refChar = genome.get(chrName).charAt(i);
+				int refVal = charToInt(refChar);
 				
-				double plusMaf = 1.0 * plusCounts[maxPlus] / unambigPlusCov;
-				double minusMaf = 1.0 * minusCounts[maxMinus] / unambigMinusCov;
+				double plusMaf = getMaf(plusCounts, refVal);
+				double minusMaf = getMaf(minusCounts, refVal);
 				
 				double higherMaf = Math.max(plusMaf, minusMaf), lowerMaf = Math.min(plusMaf, minusMaf);
 								
@@ -202,160 +468,805 @@ public class GetStrandDifferences
 					print = true;
 				}
 				
+				if(sums != null)
+				{
+					sums.add(i, unambigPlusCov, unambigMinusCov, true, print, higherMaf - lowerMaf);
+				}
+				
 				if(print)
 				{
 					System.out.println(higherMaf+" "+lowerMaf);
-					out.printf("%s\t%s\t%s\t%d,%d,%d,%d,%d\t%d,%d,%d,%d,%d\t%.3f\t%.3f\t%s\t%s%s\n", chrName, i+1, refChar, 
+					long recordStart = 0;
+					if(bgzf != null)
+					{
+						out.flush();
+						recordStart = bgzf.getUncompressedOffset();
+					}
+					out.printf("%s\t%s\t%s\t%d,%d,%d,%d,%d\t%d,%d,%d,%d,%d\t%.3f\t%.3f\t%s\t%s%s%s\n", chrName, i+1, refChar, 
 							plusCounts[0], plusCounts[1], plusCounts[2], plusCounts[3], plusCounts[4],
 							minusCounts[0], minusCounts[1], minusCounts[2], minusCounts[3], minusCounts[4],
-							plusMaf, minusMaf, new String(context), new String(revComp), (sampleName.length() == 0 ? "" : ("\t" + sampleName)));
+							plusMaf, minusMaf, new String(context), new String(revComp), (sampleName.length() == 0 ? "" : ("\t" + sampleName)),
+							(maxStrandDepth > 0 ? ("\t" + (capped != null && capped.get(i) ? 1 : 0)) : ""));
+					if(bgzf != null)
+					{
+						out.flush();
+						index.addRecord(chrName, i, i + 1, recordStart, bgzf.getUncompressedOffset());
+					}
 				}
 			}
 		}
-		out.close();
 	}
 	
-	static class Mpileup
+	/*
+	 * Orders contigs the way they appear in the genome, followed by any which aren't in it sorted by name
+	 */
+	ArrayList<String> getContigOrder(Collection<String> chrNames)
 	{
-		// Map chromosome name to an array of frequencies indexed by (position, strand, base)
-		HashMap<String, int[][][]> allFrequencies;
-		
-		// The reference characters
-		HashMap<String, char[]> genome;
-		
-		/*
-		 * Take in an mpileup file and store the allele frequencies at each position
-		 */
-		Mpileup(String fn) throws Exception
+		ArrayList<String> res = new ArrayList<String>();
+		for(String chrName : genome.keySet())
 		{
-			Scanner input = new Scanner(new FileInputStream(new File(fn)));
-			allFrequencies = new HashMap<String, int[][][]>();
+			if(chrNames.contains(chrName))
+			{
+				res.add(chrName);
+			}
+		}
+		ArrayList<String> unknown = new ArrayList<String>();
+		for(String chrName : chrNames)
+		{
+			if(!genome.containsKey(chrName))
+			{
+				unknown.add(chrName);
+			}
+		}
+		Collections.sort(unknown);
+		res.addAll(unknown);
+		return res;
+	}
+	
+	/*
+	 * Writes a summary of each window or BED region, answering each one from the prefix sums in constant time
+	 */
+	void writeWindows(HashMap<String, StrandPrefixSums> prefixSums, String windowFn) throws Exception
+	{
+		PrintWriter out = new PrintWriter(new File(windowFn));
+		out.println("CHR\tSTART\tEND\tMEAN_PLUS_DEPTH\tMEAN_MINUS_DEPTH\tCOVERED_SITES\tHIGHLIGHTED_SITES\tMEAN_MAF_DIFFERENCE");
+		StrandPrefixSums empty = new StrandPrefixSums(0);
+		if(regionsFn.length() > 0)
+		{
+			Scanner input = new Scanner(new FileInputStream(new File(regionsFn)));
 			while(input.hasNext())
 			{
 				String line = input.nextLine();
-				if(line.length() == 0 || line.startsWith("@"))
+				if(line.length() == 0 || line.startsWith("#") || line.startsWith("track") || line.startsWith("browser"))
 				{
 					continue;
 				}
-				
 				String[] tokens = line.split("\t");
-				
-				// Get chromosome, position, and ref allele
 				String chrName = tokens[0];
-				int refPos = Integer.parseInt(tokens[1]) - 1;
-				char refChar = tokens[2].charAt(0);
-				
-				if(!allFrequencies.containsKey(chrName))
+				StrandPrefixSums sums = prefixSums.containsKey(chrName) ? prefixSums.get(chrName) : empty;
+				sums.writeWindow(out, chrName, Integer.parseInt(tokens[1]), Integer.parseInt(tokens[2]));
+			}
+			input.close();
+		}
+		else
+		{
+			for(String chrName : genome.keySet())
+			{
+				if(!prefixSums.containsKey(chrName))
 				{
-					allFrequencies.put(chrName, new int[maxLen][3][6]);
+					continue;
+				}
+				StrandPrefixSums sums = prefixSums.get(chrName);
+				int chrLength = Math.min(genome.get(chrName).length(), sums.length);
+				for(int start = 0; start < chrLength; start += windowSize)
+				{
+					sums.writeWindow(out, chrName, start, Math.min(start + windowSize, chrLength));
 				}
-				
-				// Fill the frequency array at this position
-				int[][][] covArray = allFrequencies.get(chrName);
-				covArray[refPos] = getAlleleFreqs(refChar, tokens[4]);
 			}
-			input.close();
 		}
+		out.close();
 	}
 	
 	/*
-	 * Gets the number of A/C/G/T/N's covering a position from an mpileup string
+	 * Prefix sums over the positions of a contig of unambiguous depth on each strand, sites which pass the depth
+	 * filter, highlighted sites, and the difference between strand MAFs, so any window can be summarized in O(1)
 	 */
-	static int[][] getAlleleFreqs(char refChar, String pileup)
+	static class StrandPrefixSums
 	{
-		int[][] res = new int[3][6];
-		for(int i = 0; i<res.length; i++)
+		int length;
+		long[] plusDepth, minusDepth;
+		int[] coveredSites, highlightedSites;
+		double[] mafDifference;
+		
+		StrandPrefixSums(int length)
 		{
-			res[i] = new int[6];
+			this.length = length;
+			plusDepth = new long[length + 1];
+			minusDepth = new long[length + 1];
+			coveredSites = new int[length + 1];
+			highlightedSites = new int[length + 1];
+			mafDifference = new double[length + 1];
 		}
-		for(int i = 0; i<pileup.length(); i++)
+		
+		/*
+		 * Adds the next position; positions must be added in order starting from 0
+		 */
+		void add(int i, int plusCov, int minusCov, boolean covered, boolean highlighted, double mafDiff)
 		{
-			char c = pileup.charAt(i);
+			plusDepth[i+1] = plusDepth[i] + plusCov;
+			minusDepth[i+1] = minusDepth[i] + minusCov;
+			coveredSites[i+1] = coveredSites[i] + (covered ? 1 : 0);
+			highlightedSites[i+1] = highlightedSites[i] + (highlighted ? 1 : 0);
+			mafDifference[i+1] = mafDifference[i] + mafDiff;
+		}
+		
+		/*
+		 * Writes the summary of the 0-based, end-exclusive window [start, end), treating positions past the data as uncovered
+		 */
+		void writeWindow(PrintWriter out, String chrName, int start, int end)
+		{
+			int from = Math.max(0, Math.min(start, length)), to = Math.max(from, Math.min(end, length));
+			int windowLength = Math.max(1, end - start);
+			int covered = coveredSites[to] - coveredSites[from];
+			out.printf("%s\t%d\t%d\t%.3f\t%.3f\t%d\t%d\t%.3f\n", chrName, start, end,
+					1.0 * (plusDepth[to] - plusDepth[from]) / windowLength,
+					1.0 * (minusDepth[to] - minusDepth[from]) / windowLength,
+					covered, highlightedSites[to] - highlightedSites[from],
+					covered == 0 ? Double.NaN : (mafDifference[to] - mafDifference[from]) / covered);
+		}
+	}
+	
+	/*
+	 * Gets the frequency of the most common non-reference base among the unambiguous bases on one strand
+	 */
+	static double getMaf(int[] strandCounts, int refVal)
+	{
+		int unambigCov = strandCounts[0] + strandCounts[1] + strandCounts[2] + strandCounts[3];
+		int max = -1;
+		for(int j = 0; j<4; j++)
+		{
+			if(j == refVal) continue;
+			if(max == -1 || strandCounts[j] > strandCounts[max]) max = j;
+		}
+		return unambigCov == 0 ? 0 : (1.0 * strandCounts[max] / unambigCov);
+	}
+	
+	/*
+	 * Streams a coordinate-sorted VCF alongside the mpileup, adding the strand frequencies at each called site to its INFO field.
+	 * Both files are read once in a merge-join, and pileup strings are only decoded at positions which are in the VCF.
+	 */
+	void annotateVcf(String mpileupFn, String vcfFn, String ofn) throws Exception
+	{
+		// Rank contigs by where they are in the genome so both files can be compared in sorted order
+		HashMap<String, Integer> contigOrder = new HashMap<String, Integer>();
+		for(String chrName : genome.keySet())
+		{
+			contigOrder.put(chrName, contigOrder.size());
+		}
+		
+		BufferedReader vcfInput = new BufferedReader(new FileReader(vcfFn));
+		BufferedReader pileupInput = new BufferedReader(new FileReader(mpileupFn));
+		PrintWriter out = new PrintWriter(new File(ofn));
+		
+		// The current pileup line and its position, with contig -1 once the mpileup is exhausted
+		String pileupLine = null;
+		int pileupContig = -1, pileupPos = -1;
+		
+		// Decoded counts for the current pileup line, kept in case several records are at the same position
+		int[][] pileupCounts = null;
+		
+		int lastContig = -1, lastPos = -1;
+		String line;
+		while((line = vcfInput.readLine()) != null)
+		{
+			if(line.length() == 0)
+			{
+				continue;
+			}
+			if(line.startsWith("##"))
+			{
+				out.println(line);
+				continue;
+			}
+			if(line.startsWith("#"))
+			{
+				out.println("##INFO=<ID=PLUS_FREQ,Number=5,Type=Integer,Description=\"Counts of A,C,G,T,N on the plus strand\">");
+				out.println("##INFO=<ID=MINUS_FREQ,Number=5,Type=Integer,Description=\"Counts of A,C,G,T,N on the minus strand\">");
+				out.println("##INFO=<ID=PLUS_MAF,Number=1,Type=Float,Description=\"Frequency of the most common non-reference base on the plus strand\">");
+				out.println("##INFO=<ID=MINUS_MAF,Number=1,Type=Float,Description=\"Frequency of the most common non-reference base on the minus strand\">");
+				out.println(line);
+				continue;
+			}
 			
-			// Exact match so use ref character
-			if(c == '.' || c == ',')
+			VcfEntry entry = new VcfEntry(line);
+			String chrName = entry.getChromosome();
+			Integer vcfContig = contigOrder.get(chrName);
+			if(vcfContig == null)
 			{
-				res[0][charToInt(refChar)]++;
-				if(c == '.')
+				throw new Exception("VCF contig is not in the genome: " + chrName);
+			}
+			int vcfPos = entry.getPos();
+			if(vcfContig < lastContig || (vcfContig == lastContig && vcfPos < lastPos))
+			{
+				throw new Exception("VCF is not sorted in genome order at " + chrName + ":" + vcfPos);
+			}
+			lastContig = vcfContig;
+			lastPos = vcfPos;
+			
+			// Advance the mpileup until it is at or past this site, only looking at the contig and position of skipped lines
+			while(pileupLine == null || (pileupContig != -1 && (pileupContig < vcfContig || (pileupContig == vcfContig && pileupPos < vcfPos))))
+			{
+				pileupLine = pileupInput.readLine();
+				pileupCounts = null;
+				if(pileupLine == null)
 				{
-					res[1][charToInt(refChar)]++;
+					pileupLine = "";
+					pileupContig = -1;
+					break;
 				}
-				else
+				if(pileupLine.length() == 0 || pileupLine.startsWith("@"))
 				{
-					res[2][charToInt(refChar)]++;
+					pileupLine = null;
+					continue;
+				}
+				int firstTab = pileupLine.indexOf('\t');
+				int secondTab = pileupLine.indexOf('\t', firstTab + 1);
+				Integer contig = contigOrder.get(pileupLine.substring(0, firstTab));
+				if(contig == null)
+				{
+					throw new Exception("Mpileup contig is not in the genome: " + pileupLine.substring(0, firstTab));
 				}
+				pileupContig = contig;
+				pileupPos = Integer.parseInt(pileupLine.substring(firstTab + 1, secondTab));
 			}
 			
-			// Insertion or deletion after this base so ignore
-			else if(c == '+' || c == '-')
+			if(pileupContig == vcfContig && pileupPos == vcfPos)
 			{
-				int end = i;
-				int length = 0;
-				while(end+1 < pileup.length() && pileup.charAt(end+1) >= '0' && pileup.charAt(end+1)<= '9')
+				if(pileupCounts == null)
 				{
-					end++;
-					length = length * 10 + pileup.charAt(end) - '0';
+					String[] tokens = pileupLine.split("\t");
+					pileupCounts = getAlleleFreqs(tokens[2].charAt(0), tokens[4], tokens.length > 5 ? tokens[5] : null, minBaseQuality, 0, null);
 				}
-				boolean capital = (pileup.charAt(end+1) >= 'A' && pileup.charAt(end+1) <= 'Z') || pileup.charAt(end+1) == '*';
-				i = end + length;
-				res[0][5]++;
-				if(capital)
+				int refVal = charToInt(genome.get(chrName).charAt(vcfPos - 1));
+				int[] plusCounts = pileupCounts[1];
+				int[] minusCounts = pileupCounts[2];
+				entry.setInfo("PLUS_FREQ", plusCounts[0] + "," + plusCounts[1] + "," + plusCounts[2] + "," + plusCounts[3] + "," + plusCounts[4]);
+				entry.setInfo("MINUS_FREQ", minusCounts[0] + "," + minusCounts[1] + "," + minusCounts[2] + "," + minusCounts[3] + "," + minusCounts[4]);
+				entry.setInfo("PLUS_MAF", String.format("%.3f", getMaf(plusCounts, refVal)));
+				entry.setInfo("MINUS_MAF", String.format("%.3f", getMaf(minusCounts, refVal)));
+			}
+			out.println(entry);
+		}
+		vcfInput.close();
+		pileupInput.close();
+		out.close();
+	}
+	
+	class Mpileup
+	{
+		// Map chromosome name to an array of frequencies indexed by (position, strand, base)
+		HashMap<String, int[][][]> allFrequencies;
+		
+		// The reference characters
+		HashMap<String, char[]> genome;
+		
+		// Positions on each contig where a strand had more than maxStrandDepth bases, so its counts are a sample of them
+		HashMap<String, BitSet> cappedSites;
+		
+		// How many lines were read, how many were skipped at each filter, and how many had their pileup decoded
+		long linesRead, skippedOutsideRegion, skippedLowDepth, linesDecoded;
+		
+		Mpileup()
+		{
+			allFrequencies = new HashMap<String, int[][][]>();
+			cappedSites = new HashMap<String, BitSet>();
+		}
+		
+		/*
+		 * Take in an mpileup file and store the allele frequencies at each position.
+		 * Lines which can't produce a highlighted site are skipped after reading only their first few fields:
+		 * those outside the region, and, if skipLowDepth is set, those whose total depth is below twice the minimum depth.
+		 */
+		Mpileup(String fn, boolean skipLowDepth) throws Exception
+		{
+			this();
+			
+			// Scanner slows down badly on the very long lines of deep pileups, so read lines directly
+			BufferedReader input = new BufferedReader(new FileReader(fn));
+			
+			// The contig of the previous line, so the name doesn't need to be copied out of every line
+			String chrName = null;
+			int[][][] covArray = null;
+			
+			// How many unambiguous bases each strand had before sampling, to tell which sites were capped
+			int[] strandTotals = new int[3];
+			
+			String line;
+			while((line = input.readLine()) != null)
+			{
+				if(line.length() == 0 || line.startsWith("@"))
 				{
-					res[1][5]++;
+					continue;
 				}
-				else
+				linesRead++;
+				
+				// Get chromosome and position
+				int chrEnd = line.indexOf('\t');
+				int posEnd = line.indexOf('\t', chrEnd + 1);
+				if(chrName == null || chrEnd != chrName.length() || !line.startsWith(chrName))
 				{
-					res[2][5]++;
+					chrName = line.substring(0, chrEnd);
+					covArray = allFrequencies.get(chrName);
+				}
+				int refPos = Integer.parseInt(line, chrEnd + 1, posEnd, 10) - 1;
+				
+				if(regionChr.length() > 0 && (!chrName.equals(regionChr) || refPos < regionStart || refPos >= regionEnd))
+				{
+					skippedOutsideRegion++;
+					continue;
+				}
+				
+				// Get ref allele and total depth
+				int refEnd = line.indexOf('\t', posEnd + 1);
+				int depthEnd = line.indexOf('\t', refEnd + 1);
+				char refChar = line.charAt(posEnd + 1);
+				
+				// Each strand needs minDepth unambiguous bases, so a site with less than twice that in total can't pass
+				if(skipLowDepth && Integer.parseInt(line, refEnd + 1, depthEnd, 10) < 2 * minDepth)
+				{
+					skippedLowDepth++;
+					continue;
+				}
+				
+				int pileupEnd = line.indexOf('\t', depthEnd + 1);
+				String pileup = line.substring(depthEnd + 1, pileupEnd == -1 ? line.length() : pileupEnd);
+				String quals = null;
+				if(pileupEnd != -1)
+				{
+					int qualsEnd = line.indexOf('\t', pileupEnd + 1);
+					quals = line.substring(pileupEnd + 1, qualsEnd == -1 ? line.length() : qualsEnd);
+				}
+				
+				if(covArray == null)
+				{
+					covArray = new int[maxLen][3][6];
+					allFrequencies.put(chrName, covArray);
+				}
+				
+				// Fill the frequency array at this position
+				int[][] counts = getAlleleFreqs(refChar, pileup, quals, minBaseQuality, maxStrandDepth, strandTotals);
+				covArray[refPos] = counts;
+				linesDecoded++;
+				
+				if(maxStrandDepth > 0 && (strandTotals[1] > maxStrandDepth || strandTotals[2] > maxStrandDepth))
+				{
+					BitSet capped = cappedSites.get(chrName);
+					if(capped == null)
+					{
+						capped = new BitSet();
+						cappedSites.put(chrName, capped);
+					}
+					capped.set(refPos);
 				}
 			}
-			
-			else if(c == '*')
+			input.close();
+		}
+		
+		/*
+		 * Saves the counts so later runs can skip the mpileup.  The file starts with the settings the counts depend on,
+		 * then has the positions of each contig, and ends with a directory of where each contig's positions are followed
+		 * by the offset of the directory.  Each position is stored as its distance from the previous one, shifted left
+		 * with whether it was capped in the low bit, followed by the plus and minus strand counts, all as variable-length
+		 * integers.
+		 */
+		void writeCache(String cacheFn, String mpileupFn) throws Exception
+		{
+			// Jobs sharing a cache can write it at the same time, so each writes its own temporary file and moves it
+			// into place in one step
+			File cacheFile = new File(cacheFn);
+			File tmpFile = File.createTempFile(cacheFile.getName() + ".", ".tmp", cacheFile.getAbsoluteFile().getParentFile());
+			try
 			{
-				res[0][5]++;
-				res[1][5]++;
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+				try
+				{
+					out.writeInt(COUNT_CACHE_MAGIC);
+					out.writeInt(COUNT_CACHE_VERSION);
+					writeCacheSettings(out, mpileupFn);
+					
+					ArrayList<String> chrNames = new ArrayList<String>(allFrequencies.keySet());
+					long[] offsets = new long[chrNames.size()];
+					int[] numPositions = new int[chrNames.size()];
+					for(int c = 0; c<chrNames.size(); c++)
+					{
+						offsets[c] = out.size();
+						int[][][] counts = allFrequencies.get(chrNames.get(c));
+						BitSet capped = cappedSites.get(chrNames.get(c));
+						int lastPos = -1;
+						for(int i = 0; i<counts.length; i++)
+						{
+							int[] plusCounts = counts[i][1], minusCounts = counts[i][2];
+							if(counts[i][0][0] + counts[i][0][1] + counts[i][0][2] + counts[i][0][3] + counts[i][0][4] + counts[i][0][5] == 0)
+							{
+								continue;
+							}
+							boolean isCapped = capped != null && capped.get(i);
+							VarInt.write(out, (((long)(i - lastPos)) << 1) | (isCapped ? 1 : 0));
+							lastPos = i;
+							for(int j = 0; j<6; j++)
+							{
+								VarInt.write(out, plusCounts[j]);
+							}
+							for(int j = 0; j<6; j++)
+							{
+								VarInt.write(out, minusCounts[j]);
+							}
+							numPositions[c]++;
+						}
+					}
+					
+					long directoryOffset = out.size();
+					VarInt.write(out, chrNames.size());
+					for(int c = 0; c<chrNames.size(); c++)
+					{
+						writeCacheString(out, chrNames.get(c));
+						VarInt.write(out, offsets[c]);
+						VarInt.write(out, numPositions[c]);
+					}
+					out.writeLong(directoryOffset);
+				}
+				finally
+				{
+					out.close();
+				}
+				Files.move(tmpFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
 			}
-			
-			else if(c == '#')
+			finally
 			{
-				res[0][5]++;
-				res[2][5]++;
+				// Only still there if writing failed
+				tmpFile.delete();
 			}
-			
-			// Last character indicator - ignore
-			else if(c == '$')
+		}
+		
+		/*
+		 * Memory-maps a cache written by writeCache and fills in the counts from it, returning false if there is no cache
+		 * or it was made from a different mpileup, with different settings, or by a version with a different layout
+		 */
+		boolean readCache(String cacheFn, String mpileupFn) throws Exception
+		{
+			if(!new File(cacheFn).exists())
 			{
-				continue;
+				return false;
 			}
 			
-			// First character indicator - ignore
-			else if(c == '^')
-			{
-				i++;
-				continue;
-			}
+			// Compare against the settings this run would write
+			ByteArrayOutputStream expected = new ByteArrayOutputStream();
+			DataOutputStream expectedOut = new DataOutputStream(expected);
+			writeCacheSettings(expectedOut, mpileupFn);
+			expectedOut.close();
+			byte[] settings = expected.toByteArray();
 			
-			// Mismatch or N so count this character after converting it to an integer
-			else
+			RandomAccessFile raf = new RandomAccessFile(cacheFn, "r");
+			FileChannel channel = raf.getChannel();
+			try
 			{
-				int val = charToInt(c);
-				if(val != -1)
+				if(channel.size() < 8)
 				{
-					res[0][charToInt(c)]++;
+					return false;
+				}
+				MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				if(buf.getInt(0) != COUNT_CACHE_MAGIC)
+				{
+					throw new Exception("Not a count cache: " + cacheFn);
+				}
+				
+				// A cache from a version with a different layout is rebuilt like one with different settings
+				if(buf.getInt(4) != COUNT_CACHE_VERSION || channel.size() < 8 + settings.length + 8)
+				{
+					return false;
+				}
+				for(int i = 0; i<settings.length; i++)
+				{
+					if(buf.get(8 + i) != settings[i])
+					{
+						return false;
+					}
+				}
+				
+				buf.position((int)buf.getLong((int)channel.size() - 8));
+				int numContigs = (int)VarInt.read(buf);
+				for(int c = 0; c<numContigs; c++)
+				{
+					String chrName = readCacheString(buf);
+					int offset = (int)VarInt.read(buf);
+					int numPositions = (int)VarInt.read(buf);
 					
-					if(Character.isUpperCase(c) || c == '>')
+					// Read the contig's positions through a second view so the directory position is kept
+					ByteBuffer data = buf.duplicate();
+					data.position(offset);
+					int[][][] counts = new int[maxLen][3][6];
+					BitSet capped = new BitSet();
+					int pos = -1;
+					for(int p = 0; p<numPositions; p++)
+					{
+						long val = VarInt.read(data);
+						pos += (int)(val >>> 1);
+						if((val & 1) != 0)
+						{
+							capped.set(pos);
+						}
+						int[][] posCounts = counts[pos];
+						for(int strand = 1; strand <= 2; strand++)
+						{
+							for(int j = 0; j<6; j++)
+							{
+								posCounts[strand][j] = (int)VarInt.read(data);
+								posCounts[0][j] += posCounts[strand][j];
+							}
+						}
+					}
+					allFrequencies.put(chrName, counts);
+					if(!capped.isEmpty())
+					{
+						cappedSites.put(chrName, capped);
+					}
+					linesDecoded += numPositions;
+				}
+				return true;
+			}
+			finally
+			{
+				channel.close();
+				raf.close();
+			}
+		}
+		
+		/*
+		 * Writes what the counts depend on: which mpileup they came from and the options which change how it is decoded
+		 */
+		void writeCacheSettings(DataOutputStream out, String mpileupFn) throws Exception
+		{
+			File mpileupFile = new File(mpileupFn);
+			writeCacheString(out, mpileupFile.getCanonicalPath());
+			out.writeLong(mpileupFile.length());
+			out.writeLong(mpileupFile.lastModified());
+			out.writeInt(maxLen);
+			out.writeInt(minBaseQuality);
+			out.writeInt(maxStrandDepth);
+			writeCacheString(out, regionChr);
+			out.writeInt(regionStart);
+			out.writeInt(regionEnd);
+		}
+	}
+	
+	static void writeCacheString(DataOutputStream out, String s) throws Exception
+	{
+		byte[] bytes = s.getBytes("UTF-8");
+		VarInt.write(out, bytes.length);
+		out.write(bytes);
+	}
+	
+	static String readCacheString(ByteBuffer buf) throws Exception
+	{
+		byte[] bytes = new byte[(int)VarInt.read(buf)];
+		buf.get(bytes);
+		return new String(bytes, "UTF-8");
+	}
+	
+	// Identifies count cache files and the version of their layout
+	static final int COUNT_CACHE_MAGIC = 0x53434331;
+	static final int COUNT_CACHE_VERSION = 2;
+	
+	// What to do with each character of a pileup string
+	static final byte PILEUP_IGNORE = 0;
+	static final byte PILEUP_REF = 1;
+	static final byte PILEUP_BASE = 2;
+	static final byte PILEUP_DELETION = 3;
+	static final byte PILEUP_INDEL = 4;
+	static final byte PILEUP_READ_START = 5;
+	
+	// Lookup tables giving the action, base index, and strand (1 for plus, 2 for minus) of each pileup character
+	static final byte[] PILEUP_ACTIONS = new byte[256];
+	static final byte[] PILEUP_BASES = new byte[256];
+	static final byte[] PILEUP_STRANDS = new byte[256];
+	
+	static
+	{
+		PILEUP_ACTIONS['.'] = PILEUP_REF;
+		PILEUP_STRANDS['.'] = 1;
+		PILEUP_ACTIONS[','] = PILEUP_REF;
+		PILEUP_STRANDS[','] = 2;
+		
+		// Mismatches and N's, where the case gives the strand
+		for(char c : "ACGTN>".toCharArray())
+		{
+			PILEUP_ACTIONS[c] = PILEUP_BASE;
+			PILEUP_BASES[c] = (byte)charToInt(c);
+			PILEUP_STRANDS[c] = 1;
+		}
+		for(char c : "acgtn<".toCharArray())
+		{
+			PILEUP_ACTIONS[c] = PILEUP_BASE;
+			PILEUP_BASES[c] = (byte)charToInt(c);
+			PILEUP_STRANDS[c] = 2;
+		}
+		
+		// Deletions are counted in the last slot
+		PILEUP_ACTIONS['*'] = PILEUP_DELETION;
+		PILEUP_BASES['*'] = 5;
+		PILEUP_STRANDS['*'] = 1;
+		PILEUP_ACTIONS['#'] = PILEUP_DELETION;
+		PILEUP_BASES['#'] = 5;
+		PILEUP_STRANDS['#'] = 2;
+		
+		PILEUP_ACTIONS['+'] = PILEUP_INDEL;
+		PILEUP_ACTIONS['-'] = PILEUP_INDEL;
+		PILEUP_ACTIONS['^'] = PILEUP_READ_START;
+		
+		// Last character indicators ('$') and anything unexpected are left as PILEUP_IGNORE
+	}
+	
+	/*
+	 * Gets the number of A/C/G/T/N's covering a position from an mpileup string.
+	 * If quals is given, it is walked in lockstep with the pileup and bases with quality below minBaseQuality are not counted.
+	 * If maxStrandDepth is positive, a strand with more unambiguous bases than that has its A/C/G/T counts replaced by
+	 * those of a uniform random sample of maxStrandDepth of its bases (see sampleCounts), so the sample doesn't favour
+	 * reads by where their alignments start.  Its N and deletion counts are still complete.  The sample is drawn without
+	 * replacement, so by Hoeffding's inequality each base's frequency is within t of its frequency among all of the
+	 * strand's bases except with probability at most 2exp(-2nt^2), for n = maxStrandDepth.  If strandTotals is given,
+	 * it is filled with the number of unambiguous bases on each strand before sampling, indexed like the result.
+	 */
+	static int[][] getAlleleFreqs(char refChar, String pileup, String quals, int minBaseQuality, int maxStrandDepth, int[] strandTotals)
+	{
+		int[][] res = new int[3][6];
+		int refVal = charToInt(refChar);
+		if(refVal == -1)
+		{
+			refVal = 4;
+		}
+		
+		boolean filter = quals != null && minBaseQuality > 0;
+		int qualLength = filter ? quals.length() : 0;
+		int qualIdx = 0;
+		
+		int n = pileup.length();
+		for(int i = 0; i<n; i++)
+		{
+			char c = pileup.charAt(i);
+			byte action = c < 256 ? PILEUP_ACTIONS[c] : PILEUP_IGNORE;
+			switch(action)
+			{
+				case PILEUP_REF:
+				case PILEUP_BASE:
+				{
+					// Every read base has a quality, so this keeps the quality string in step with the reads
+					// Low-quality bases add 0 rather than branching, since pass/fail is unpredictable
+					int pass = 1;
+					if(filter && qualIdx < qualLength)
 					{
-						res[1][charToInt(c)]++;
+						pass = ((quals.charAt(qualIdx) - 33 - minBaseQuality) >>> 31) ^ 1;
 					}
-					if(Character.isLowerCase(c) || c == '<')
+					qualIdx++;
+					int strand = PILEUP_STRANDS[c];
+					int base = action == PILEUP_REF ? refVal : PILEUP_BASES[c];
+					res[0][base] += pass;
+					res[strand][base] += pass;
+					break;
+				}
+				
+				case PILEUP_DELETION:
+				{
+					// Deletions have a placeholder quality which isn't filtered on
+					qualIdx++;
+					int strand = PILEUP_STRANDS[c];
+					res[0][5]++;
+					res[strand][5]++;
+					break;
+				}
+				
+				// Insertion or deletion after this base so ignore
+				case PILEUP_INDEL:
+				{
+					int end = i;
+					int length = 0;
+					while(end+1 < n && pileup.charAt(end+1) >= '0' && pileup.charAt(end+1)<= '9')
 					{
-						res[2][charToInt(c)]++;
+						end++;
+						length = length * 10 + pileup.charAt(end) - '0';
 					}
+					char next = pileup.charAt(end+1);
+					boolean capital = (next >= 'A' && next <= 'Z') || next == '*';
+					i = end + length;
+					int strand = capital ? 1 : 2;
+					res[0][5]++;
+					res[strand][5]++;
+					break;
+				}
+				
+				// First character indicator - skip the mapping quality which follows it
+				case PILEUP_READ_START:
+				{
+					i++;
+					break;
+				}
+				
+				default:
+					break;
+			}
+		}
+		
+		for(int strand = 1; strand<=2; strand++)
+		{
+			int depth = res[strand][0] + res[strand][1] + res[strand][2] + res[strand][3];
+			if(strandTotals != null)
+			{
+				strandTotals[strand] = depth;
+			}
+			if(maxStrandDepth > 0 && depth > maxStrandDepth)
+			{
+				// Seeded from the pileup itself so reruns give the same counts but different sites get independent samples
+				int[] sample = sampleCounts(res[strand], depth, maxStrandDepth, ((long)pileup.hashCode() << 32) ^ (pileup.length() << 1 | strand));
+				for(int j = 0; j<4; j++)
+				{
+					res[0][j] += sample[j] - res[strand][j];
+					res[strand][j] = sample[j];
 				}
 			}
 		}
 		return res;
 	}
 	
+	/*
+	 * Draws size of the depth bases counted in counts[0..3] uniformly at random without replacement and returns how many
+	 * of each base were drawn.  Only the counts matter, so this gives the same distribution as sampling the bases of the
+	 * pileup themselves while taking time proportional to the sample rather than the depth.  When the sample is more than
+	 * half the bases, the bases left out are drawn instead.  The seed is scrambled first since xorshift gives nearly
+	 * the same first numbers for similar seeds.
+	 */
+	static int[] sampleCounts(int[] counts, int depth, int size, long seed)
+	{
+		int[] pool = new int[] {counts[0], counts[1], counts[2], counts[3]};
+		int[] drawn = new int[4];
+		boolean complement = size > depth - size;
+		int draws = complement ? depth - size : size;
+		// SplitMix64's finalizer, which spreads every bit of the seed across the whole state
+		long random = seed + 0x9E3779B97F4A7C15L;
+		random = (random ^ (random >>> 30)) * 0xBF58476D1CE4E5B9L;
+		random = (random ^ (random >>> 27)) * 0x94D049BB133111EBL;
+		random ^= random >>> 31;
+		if(random == 0)
+		{
+			random = 1;
+		}
+		int remaining = depth;
+		for(int d = 0; d<draws; d++)
+		{
+			random ^= random << 13;
+			random ^= random >>> 7;
+			random ^= random << 17;
+			
+			// Scale 32 random bits to [0, remaining) with a multiply rather than a much slower division
+			long slot = ((random >>> 32) * remaining) >>> 32;
+			int base = 0;
+			while(slot >= pool[base])
+			{
+				slot -= pool[base];
+				base++;
+			}
+			pool[base]--;
+			drawn[base]++;
+			remaining--;
+		}
+		if(complement)
+		{
+			for(int j = 0; j<4; j++)
+			{
+				drawn[j] = counts[j] - drawn[j];
+			}
+		}
+		return drawn;
+	}
+	
 	/*
 	 * Converts a basepair charater to an integer index
 	 */
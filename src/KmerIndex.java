@@ -0,0 +1,248 @@
+/*
+ * A background index of how often each canonical k-mer occurs in a reference genome.
+ * It is built once from the reference FASTA and saved as a flat binary table indexed by
+ * k-mer code, which later runs memory-map so each lookup is a single array read.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class KmerIndex
+{
+	// Identifies index files and the version of their layout
+	static final int INDEX_MAGIC = 0x4b4d4931;
+	static final int INDEX_VERSION = 1;
+	static final int INDEX_HEADER_BYTES = 24;
+
+	// The largest k-mer length which can be indexed densely
+	static final int MAX_K = 14;
+
+	static String genomeFn = "", ofn = "";
+	static int k = 6;
+
+	int indexK;
+
+	// The number of k-mers counted across the whole genome
+	long totalKmers;
+
+	// Occurrences of each canonical k-mer indexed by its code; entries for non-canonical codes are 0
+	IntBuffer counts;
+
+	KmerIndex(int indexK, long totalKmers, IntBuffer counts)
+	{
+		this.indexK = indexK;
+		this.totalKmers = totalKmers;
+		this.counts = counts;
+	}
+
+	static void usage()
+	{
+		System.out.println("Usage: java -cp src KmerIndex [args]");
+		System.out.println("  Example: java -cp src KmerIndex genome_file=genome.fa out_file=genome.k6.idx k=6");
+		System.out.println();
+		System.out.println("Required args:");
+		System.out.println("  genome_file  (String) - path to genome");
+		System.out.println("  out_file     (String) - file to write the k-mer index to");
+		System.out.println();
+		System.out.println("Optional args:");
+		System.out.println("  k            (int)    [6] - length of k-mers to count (at most " + MAX_K + ")");
+		System.out.println();
+	}
+
+	static void parseArgs(String[] args)
+	{
+		for(String s : args)
+		{
+			int equalsIdx = s.indexOf('=');
+			if(equalsIdx == -1)
+			{
+
+			}
+			else
+			{
+				String key = s.substring(0, equalsIdx);
+				String val = s.substring(1 + equalsIdx);
+				if(key.equalsIgnoreCase("genome_file")) { genomeFn = val; }
+				else if(key.equalsIgnoreCase("out_file")) { ofn = val; }
+				else if(key.equalsIgnoreCase("k")) { k = Integer.parseInt(val); }
+			}
+		}
+
+		if(genomeFn.length() == 0 || ofn.length() == 0 || k < 1 || k > MAX_K)
+		{
+			usage();
+			System.exit(1);
+		}
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		parseArgs(args);
+		KmerIndex index = build(genomeFn, k);
+		index.write(new File(ofn));
+	}
+
+	/*
+	 * Counts every canonical k-mer in a FASTA file, skipping k-mers which contain non-ACGT bases
+	 */
+	static KmerIndex build(String genomeFn, int k) throws Exception
+	{
+		int n = 1 << (2 * k);
+		int mask = n - 1;
+		int[] counts = new int[n];
+		long total = 0;
+
+		BufferedReader input = new BufferedReader(new FileReader(genomeFn));
+		String line;
+		int code = 0, rcCode = 0, validLength = 0;
+		while((line = input.readLine()) != null)
+		{
+			if(line.startsWith(">"))
+			{
+				validLength = 0;
+				continue;
+			}
+			for(int i = 0; i<line.length(); i++)
+			{
+				int val = GetStrandDifferences.charToInt(line.charAt(i));
+				if(val < 0 || val > 3)
+				{
+					validLength = 0;
+					continue;
+				}
+				code = ((code << 2) | val) & mask;
+				rcCode = (rcCode >>> 2) | ((3 - val) << (2 * (k - 1)));
+				validLength++;
+				if(validLength >= k)
+				{
+					int canonical = Math.min(code, rcCode);
+					if(counts[canonical] < Integer.MAX_VALUE)
+					{
+						counts[canonical]++;
+					}
+					total++;
+				}
+			}
+		}
+		input.close();
+		return new KmerIndex(k, total, IntBuffer.wrap(counts));
+	}
+
+	/*
+	 * Writes the index as a small header followed by the count of every k-mer code
+	 */
+	void write(File file) throws Exception
+	{
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		out.writeInt(INDEX_MAGIC);
+		out.writeInt(INDEX_VERSION);
+		out.writeInt(indexK);
+		out.writeInt(0);
+		out.writeLong(totalKmers);
+		int n = 1 << (2 * indexK);
+		for(int i = 0; i<n; i++)
+		{
+			out.writeInt(counts.get(i));
+		}
+		out.close();
+	}
+
+	/*
+	 * Memory-maps an index written by write
+	 */
+	static KmerIndex load(String fn) throws Exception
+	{
+		RandomAccessFile raf = new RandomAccessFile(fn, "r");
+		FileChannel channel = raf.getChannel();
+		try
+		{
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if(channel.size() < INDEX_HEADER_BYTES || buf.getInt(0) != INDEX_MAGIC || buf.getInt(4) != INDEX_VERSION)
+			{
+				throw new Exception("Not a k-mer index: " + fn);
+			}
+			int indexK = buf.getInt(8);
+			if(indexK < 1 || indexK > MAX_K || channel.size() != INDEX_HEADER_BYTES + 4L * (1 << (2 * indexK)))
+			{
+				throw new Exception("Corrupt k-mer index: " + fn);
+			}
+			long total = buf.getLong(16);
+			buf.position(INDEX_HEADER_BYTES);
+			return new KmerIndex(indexK, total, buf.slice().asIntBuffer());
+		}
+		finally
+		{
+			channel.close();
+			raf.close();
+		}
+	}
+
+	/*
+	 * Gets the fraction of genome k-mers which are the given k-mer or its reverse complement, or NaN if it has non-ACGT bases
+	 */
+	double getFrequency(String kmer)
+	{
+		int code = PoreModel.encode(kmer);
+		if(code == -1 || kmer.length() != indexK || totalKmers == 0)
+		{
+			return Double.NaN;
+		}
+		int rcCode = PoreModel.encode(GetProblematicKmers.reverseComplement(kmer));
+		return 1.0 * counts.get(Math.min(code, rcCode)) / totalKmers;
+	}
+
+	/*
+	 * The probability that a Poisson variable with the given mean is at least x
+	 */
+	static double poissonUpperTail(long x, double mean)
+	{
+		if(x <= 0)
+		{
+			return 1;
+		}
+		if(mean <= 0)
+		{
+			return 0;
+		}
+
+		// Sum the terms from x upwards in log space until they stop contributing
+		double logMean = Math.log(mean);
+		double sum = 0;
+		for(long i = x; ; i++)
+		{
+			double term = Math.exp(-mean + i * logMean - logGamma(i + 1));
+			sum += term;
+			if(i > mean && term < sum * 1e-15)
+			{
+				break;
+			}
+		}
+		return Math.min(1, sum);
+	}
+
+	/*
+	 * Natural log of the gamma function, using the Lanczos approximation
+	 */
+	static double logGamma(double x)
+	{
+		double[] coefficients = {76.18009172947146, -86.50532032941677, 24.01409824083091,
+				-1.231739572450155, 0.1208650973866179e-2, -0.5395239384953e-5};
+		double y = x;
+		double tmp = x + 5.5;
+		tmp -= (x + 0.5) * Math.log(tmp);
+		double series = 1.000000000190015;
+		for(double c : coefficients)
+		{
+			series += c / ++y;
+		}
+		return -tmp + Math.log(2.5066282746310005 * series / x);
+	}
+}
@@ -0,0 +1,503 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.PriorityQueue;
+import java.util.Scanner;
+
+public class MergeVcfs
+{
+	static String vcfFilesArg = "", vcfListFn = "", ofn = "", genomeFn = "";
+
+	static void usage()
+	{
+		System.out.println("Usage: java -cp src MergeVcfs [args]");
+		System.out.println("  Example: java -cp src MergeVcfs vcf_list=samples.txt out_file=merged.vcf");
+		System.out.println();
+		System.out.println("Required args (one of vcf_files or vcf_list):");
+		System.out.println("  vcf_files    (String) - comma-separated list of coordinate-sorted VCFs to merge");
+		System.out.println("  vcf_list     (String) - file with the path of one coordinate-sorted VCF per line");
+		System.out.println("  out_file     (String) - file to write the merged sites-only VCF to");
+		System.out.println();
+		System.out.println("Optional args:");
+		System.out.println("  genome_file  (String) [\"\"] - genome FASTA or .fai index giving the order contigs are sorted in; without it");
+		System.out.println("                              the order comes from the inputs' ##contig headers, which every input must have");
+		System.out.println();
+		System.out.println("Records with the same contig, position, and ALT are merged into one, with the INFO fields of the");
+		System.out.println("first input taking priority. SUPP gives the number of inputs with the variant and SUPP_VEC has a 1");
+		System.out.println("for each input which has it, in the order the inputs were given. The INFO, FILTER and ALT header");
+		System.out.println("lines of every input are kept, and the other header lines come from the first input.");
+		System.out.println();
+	}
+
+	static void parseArgs(String[] args)
+	{
+		for(String s : args)
+		{
+			int equalsIdx = s.indexOf('=');
+			if(equalsIdx == -1)
+			{
+
+			}
+			else
+			{
+				String key = s.substring(0, equalsIdx);
+				String val = s.substring(1 + equalsIdx);
+				if(key.equalsIgnoreCase("vcf_files")) { vcfFilesArg = val; }
+				else if(key.equalsIgnoreCase("vcf_list")) { vcfListFn = val; }
+				else if(key.equalsIgnoreCase("out_file")) { ofn = val; }
+				else if(key.equalsIgnoreCase("genome_file")) { genomeFn = val; }
+			}
+		}
+
+		if((vcfFilesArg.length() == 0 && vcfListFn.length() == 0) || ofn.length() == 0)
+		{
+			usage();
+			System.exit(1);
+		}
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		parseArgs(args);
+
+		ArrayList<String> vcfFns = new ArrayList<String>();
+		if(vcfFilesArg.length() > 0)
+		{
+			vcfFns.addAll(Arrays.asList(vcfFilesArg.split(",")));
+		}
+		if(vcfListFn.length() > 0)
+		{
+			Scanner listInput = new Scanner(new File(vcfListFn));
+			while(listInput.hasNext())
+			{
+				String line = listInput.nextLine().trim();
+				if(line.length() > 0)
+				{
+					vcfFns.add(line);
+				}
+			}
+			listInput.close();
+		}
+
+		mergeVcfs(vcfFns, ofn);
+	}
+
+	/*
+	 * Does a k-way merge of coordinate-sorted VCFs, keeping only the current record of each input in memory.
+	 * The output is written to a temporary file which is only moved into place once every input has been merged.
+	 */
+	static void mergeVcfs(ArrayList<String> vcfFns, String ofn) throws Exception
+	{
+		int n = vcfFns.size();
+
+		// Read every header first so the contig order and the output header are settled before any records are compared
+		ArrayList<VcfSource> sources = new ArrayList<VcfSource>();
+		for(int i = 0; i<n; i++)
+		{
+			sources.add(new VcfSource(vcfFns.get(i), i));
+		}
+		HashMap<String, Integer> contigOrder = genomeFn.length() > 0 ? readContigOrder(genomeFn) : getHeaderContigOrder(sources);
+
+		// The first input's header lines, plus the INFO, FILTER and ALT definitions which only later inputs have
+		ArrayList<String> headerLines = new ArrayList<String>();
+		HashSet<String> definedIds = new HashSet<String>();
+		LinkedHashMap<String, String> contigLines = new LinkedHashMap<String, String>();
+		for(VcfSource source : sources)
+		{
+			for(String line : source.headerLines)
+			{
+				String contig = getHeaderContig(line);
+				if(contig != null)
+				{
+					if(!contigOrder.containsKey(contig))
+					{
+						throw new Exception("Contig " + contig + " in the header of " + source.fn + " is not in " + genomeFn);
+					}
+					if(!contigLines.containsKey(contig))
+					{
+						contigLines.put(contig, line);
+					}
+					continue;
+				}
+				if(!line.startsWith("##"))
+				{
+					continue;
+				}
+				String definedId = getHeaderDefinition(line);
+				if(definedId != null)
+				{
+					// SUPP and SUPP_VEC are redefined below since their values are replaced
+					if(!definedId.equals("INFO:SUPP") && !definedId.equals("INFO:SUPP_VEC") && definedIds.add(definedId))
+					{
+						headerLines.add(line);
+					}
+				}
+				else if(source.index == 0)
+				{
+					headerLines.add(line);
+				}
+			}
+			source.headerLines = null;
+			source.contigOrder = contigOrder;
+		}
+		ArrayList<String> sortedContigs = new ArrayList<String>(contigLines.keySet());
+		Collections.sort(sortedContigs, new ContigComparator(contigOrder));
+
+		File outFile = new File(ofn);
+		File tmpFile = File.createTempFile(outFile.getName() + ".", ".tmp", outFile.getAbsoluteFile().getParentFile());
+		PrintWriter out = new PrintWriter(tmpFile);
+		try
+		{
+			for(String line : headerLines)
+			{
+				out.println(line);
+			}
+			for(String contig : sortedContigs)
+			{
+				out.println(contigLines.get(contig));
+			}
+			out.println("##INFO=<ID=SUPP,Number=1,Type=Integer,Description=\"Number of inputs which have the variant\">");
+			out.println("##INFO=<ID=SUPP_VEC,Number=1,Type=String,Description=\"Which inputs have the variant, as one 0/1 character per input\">");
+			out.println("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO");
+
+			PriorityQueue<VcfSource> heap = new PriorityQueue<VcfSource>();
+			for(VcfSource source : sources)
+			{
+				if(source.advance())
+				{
+					heap.add(source);
+				}
+			}
+
+			char[] suppVec = new char[n];
+			ArrayList<PendingRecord> atPosition = new ArrayList<PendingRecord>();
+			while(!heap.isEmpty())
+			{
+				// Pull every record at the next position, since inputs don't have to agree on the order of ALTs at one position
+				VcfEntry first = heap.peek().cur;
+				atPosition.clear();
+				while(!heap.isEmpty() && heap.peek().cur.samePosition(first))
+				{
+					VcfSource source = heap.poll();
+					atPosition.add(new PendingRecord(source.cur, source.index));
+					if(source.advance())
+					{
+						heap.add(source);
+					}
+				}
+				Collections.sort(atPosition);
+
+				int start = 0;
+				while(start < atPosition.size())
+				{
+					VcfEntry merged = atPosition.get(start).entry;
+					int end = start + 1;
+					while(end < atPosition.size() && atPosition.get(end).entry.compareTo(merged) == 0)
+					{
+						merged.merge(atPosition.get(end).entry);
+						end++;
+					}
+
+					Arrays.fill(suppVec, '0');
+					for(int sample : merged.support)
+					{
+						suppVec[sample] = '1';
+					}
+					merged.tabTokens = Arrays.copyOf(merged.tabTokens, 8);
+					merged.setInfo("SUPP", merged.support.size() + "");
+					merged.setInfo("SUPP_VEC", new String(suppVec));
+					out.println(merged);
+
+					start = end;
+				}
+			}
+			out.close();
+		}
+		catch(Exception e)
+		{
+			out.close();
+			tmpFile.delete();
+			throw e;
+		}
+
+		try
+		{
+			Files.move(tmpFile.toPath(), outFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch(Exception e)
+		{
+			tmpFile.delete();
+			throw new Exception("Could not write " + ofn + ": " + e.getMessage());
+		}
+	}
+
+	/*
+	 * Gets the rank of each contig in a genome, reading the names from its .fai index when there is one
+	 */
+	static HashMap<String, Integer> readContigOrder(String genomeFn) throws Exception
+	{
+		boolean isIndex = genomeFn.endsWith(".fai");
+		String fn = genomeFn;
+		if(!isIndex && new File(genomeFn + ".fai").exists())
+		{
+			fn = genomeFn + ".fai";
+			isIndex = true;
+		}
+
+		HashMap<String, Integer> res = new HashMap<String, Integer>();
+		BufferedReader input = new BufferedReader(new FileReader(fn));
+		String line;
+		while((line = input.readLine()) != null)
+		{
+			String name = null;
+			if(isIndex && line.length() > 0)
+			{
+				name = line.split("\t")[0];
+			}
+			else if(!isIndex && line.startsWith(">"))
+			{
+				name = line.substring(1).split("\\s")[0];
+			}
+			if(name != null && !res.containsKey(name))
+			{
+				res.put(name, res.size());
+			}
+		}
+		input.close();
+		return res;
+	}
+
+	/*
+	 * Gets the rank of each contig from the inputs' ##contig headers, failing if an input with records has none
+	 * or if two inputs list their contigs in conflicting orders
+	 */
+	static HashMap<String, Integer> getHeaderContigOrder(ArrayList<VcfSource> sources) throws Exception
+	{
+		// The contigs which each contig comes after in some input's header
+		LinkedHashMap<String, HashSet<String>> after = new LinkedHashMap<String, HashSet<String>>();
+		for(VcfSource source : sources)
+		{
+			ArrayList<String> contigs = new ArrayList<String>();
+			for(String line : source.headerLines)
+			{
+				String contig = getHeaderContig(line);
+				if(contig != null)
+				{
+					contigs.add(contig);
+				}
+			}
+			if(contigs.isEmpty() && source.pendingLine != null)
+			{
+				throw new Exception(source.fn + " has no ##contig header lines, so genome_file is needed to give the contig order");
+			}
+			for(int i = 0; i<contigs.size(); i++)
+			{
+				if(!after.containsKey(contigs.get(i)))
+				{
+					after.put(contigs.get(i), new HashSet<String>());
+				}
+				after.get(contigs.get(i)).addAll(contigs.subList(0, i));
+			}
+		}
+
+		// Repeatedly place the first contig whose predecessors are all placed, which keeps the first input's order
+		HashMap<String, Integer> res = new HashMap<String, Integer>();
+		while(res.size() < after.size())
+		{
+			String next = null;
+			for(String contig : after.keySet())
+			{
+				if(!res.containsKey(contig) && res.keySet().containsAll(after.get(contig)))
+				{
+					next = contig;
+					break;
+				}
+			}
+			if(next == null)
+			{
+				throw new Exception("Inputs list their ##contig headers in conflicting orders, so genome_file is needed to give the contig order");
+			}
+			res.put(next, res.size());
+		}
+		return res;
+	}
+
+	/*
+	 * Gets the contig ID from a ##contig header line, or null if it is not one
+	 */
+	static String getHeaderContig(String line)
+	{
+		if(!line.startsWith("##contig=<"))
+		{
+			return null;
+		}
+		return getHeaderId(line);
+	}
+
+	/*
+	 * Gets the type and ID defined by an INFO, FILTER or ALT header line, such as INFO:DP, or null if it is another kind of line
+	 */
+	static String getHeaderDefinition(String line)
+	{
+		for(String type : new String[] {"INFO", "FILTER", "ALT"})
+		{
+			if(line.startsWith("##" + type + "=<"))
+			{
+				String id = getHeaderId(line);
+				return id == null ? null : (type + ":" + id);
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * Gets the value of the ID field of a structured header line, or null if it has none
+	 */
+	static String getHeaderId(String line)
+	{
+		int idIdx = line.indexOf("ID=");
+		if(idIdx == -1)
+		{
+			return null;
+		}
+		int end = idIdx + 3;
+		while(end < line.length() && line.charAt(end) != ',' && line.charAt(end) != '>')
+		{
+			end++;
+		}
+		return line.substring(idIdx + 3, end);
+	}
+
+	/*
+	 * Orders contig names by their rank in the merge
+	 */
+	static class ContigComparator implements Comparator<String>
+	{
+		HashMap<String, Integer> contigOrder;
+
+		ContigComparator(HashMap<String, Integer> contigOrder)
+		{
+			this.contigOrder = contigOrder;
+		}
+
+		public int compare(String a, String b)
+		{
+			return Integer.compare(contigOrder.get(a), contigOrder.get(b));
+		}
+	}
+
+	/*
+	 * A record waiting to be merged with others at the same position, ordered so the earliest input comes first
+	 */
+	static class PendingRecord implements Comparable<PendingRecord>
+	{
+		VcfEntry entry;
+		int index;
+
+		PendingRecord(VcfEntry entry, int index)
+		{
+			this.entry = entry;
+			this.index = index;
+		}
+
+		public int compareTo(PendingRecord o)
+		{
+			int res = entry.compareTo(o.entry);
+			return res != 0 ? res : Integer.compare(index, o.index);
+		}
+	}
+
+	/*
+	 * One input VCF, holding its header and the record it is currently at
+	 */
+	static class VcfSource implements Comparable<VcfSource>
+	{
+		String fn;
+		int index;
+		BufferedReader input;
+		ArrayList<String> headerLines;
+		VcfEntry cur;
+
+		// The rank of each contig in the merge, which records are sorted by
+		HashMap<String, Integer> contigOrder;
+
+		// The first record line, which is read while looking for the end of the header
+		String pendingLine;
+
+		VcfSource(String fn, int index) throws Exception
+		{
+			this.fn = fn;
+			this.index = index;
+			input = new BufferedReader(new FileReader(fn));
+			headerLines = new ArrayList<String>();
+			String line;
+			while((line = input.readLine()) != null)
+			{
+				if(line.startsWith("#"))
+				{
+					headerLines.add(line);
+				}
+				else if(line.length() > 0)
+				{
+					pendingLine = line;
+					break;
+				}
+			}
+		}
+
+		/*
+		 * Moves on to the next record, returning false and closing the file when there are none left
+		 */
+		boolean advance() throws Exception
+		{
+			String line = pendingLine;
+			pendingLine = null;
+			while(line == null || line.length() == 0)
+			{
+				line = input.readLine();
+				if(line == null)
+				{
+					break;
+				}
+			}
+			if(line == null)
+			{
+				input.close();
+				cur = null;
+				return false;
+			}
+
+			VcfEntry next = new VcfEntry(line);
+			Integer contigId = contigOrder.get(next.getChromosome());
+			if(contigId == null)
+			{
+				throw new Exception(fn + " has a record on " + next.getChromosome() + ", which is not in "
+						+ (genomeFn.length() > 0 ? genomeFn : "any ##contig header"));
+			}
+			next.contigId = contigId;
+			next.support.add(index);
+			if(cur != null && (next.contigId < cur.contigId || (next.contigId == cur.contigId && next.pos < cur.pos)))
+			{
+				throw new Exception(fn + " is not sorted in the merge's contig order at " + next.getChromosome() + ":" + next.pos);
+			}
+			cur = next;
+			return true;
+		}
+
+		public int compareTo(VcfSource o)
+		{
+			int res = cur.compareTo(o.cur);
+			return res != 0 ? res : Integer.compare(index, o.index);
+		}
+	}
+}
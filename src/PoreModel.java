@@ -0,0 +1,392 @@
+/*
+ * A pore model giving the mean and standard deviation of the signal level for every k-mer.
+ * The levels are stored densely, indexed by the 2-bit encoding of each k-mer, and the
+ * first time a text model is loaded it is compiled into a binary cache file which later
+ * runs memory-map instead of re-parsing the text.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Scanner;
+
+public class PoreModel
+{
+	// Identifies binary model caches and the version of their layout
+	static final int CACHE_MAGIC = 0x504d4331;
+	static final int CACHE_VERSION = 2;
+
+	// The fixed part of the header, which is followed by the path of the source model and padding up to a multiple of 8
+	static final int CACHE_FIXED_HEADER_BYTES = 32;
+
+	// The largest k-mer length which can be indexed densely
+	static final int MAX_K = 13;
+
+	// When running as a server, models which have already been loaded, keyed by path, along with the modification
+	// time of the file each was loaded from so a model which has changed replaces its old copy
+	static HashMap<String, PoreModel> resident = null;
+	static HashMap<String, Long> residentTimes = null;
+
+	int k;
+
+	// Signal level means and standard deviations indexed by k-mer code, NaN for k-mers not in the model
+	DoubleBuffer means;
+	DoubleBuffer stdevs;
+
+	PoreModel(int k, DoubleBuffer means, DoubleBuffer stdevs)
+	{
+		this.k = k;
+		this.means = means;
+		this.stdevs = stdevs;
+	}
+
+	/*
+	 * Loads a model, reusing the resident copy when running as a server and it was loaded from the file as it is now
+	 */
+	static PoreModel load(String modelFn, String cacheFn) throws Exception
+	{
+		if(resident == null)
+		{
+			return loadFromDisk(modelFn, cacheFn);
+		}
+		String residentKey = new File(modelFn).getCanonicalPath();
+		long lastModified = new File(modelFn).lastModified();
+		synchronized(resident)
+		{
+			PoreModel model = resident.get(residentKey);
+			if(model == null || residentTimes.get(residentKey) != lastModified)
+			{
+				resident.remove(residentKey);
+				model = loadFromDisk(modelFn, cacheFn);
+				resident.put(residentKey, model);
+				residentTimes.put(residentKey, lastModified);
+			}
+			return model;
+		}
+	}
+
+	/*
+	 * Loads a model, using its binary cache if it was built from this version of the model and building the cache otherwise
+	 */
+	static PoreModel loadFromDisk(String modelFn, String cacheFn) throws Exception
+	{
+		File modelFile = new File(modelFn);
+		File cacheFile = new File(cacheFn);
+		if(cacheFile.exists())
+		{
+			PoreModel cached = readCache(cacheFile, modelFile);
+			if(cached != null)
+			{
+				return cached;
+			}
+		}
+
+		PoreModel model = parse(modelFile);
+		try
+		{
+			model.writeCache(cacheFile, modelFile);
+		}
+		catch(IOException e)
+		{
+			System.out.println("Could not write model cache " + cacheFn + ": " + e.getMessage());
+		}
+		return model;
+	}
+
+	/*
+	 * Loads a model, keeping its binary cache next to the text model
+	 */
+	static PoreModel load(String modelFn) throws Exception
+	{
+		return load(modelFn, modelFn + ".bin");
+	}
+
+	/*
+	 * Parses a text model with kmer, level_mean and level_stdv columns
+	 */
+	static PoreModel parse(File modelFile) throws Exception
+	{
+		Scanner input = new Scanner(new FileInputStream(modelFile));
+		TableReader table = new TableReader(input.nextLine());
+		int kmerCol = table.getColumn("kmer");
+		int meanCol = table.getColumn("level_mean");
+		int stdevCol = table.getColumn("level_stdv");
+
+		int k = -1;
+		double[] means = null, stdevs = null;
+		while(input.hasNext())
+		{
+			String line = input.nextLine();
+			if(line.length() == 0)
+			{
+				continue;
+			}
+			table.setRow(line);
+			String kmer = table.getString(kmerCol);
+			if(k == -1)
+			{
+				k = kmer.length();
+				if(k > MAX_K)
+				{
+					input.close();
+					throw new Exception("Model k-mers are too long to index: " + kmer);
+				}
+				means = new double[1 << (2 * k)];
+				stdevs = new double[1 << (2 * k)];
+				Arrays.fill(means, Double.NaN);
+				Arrays.fill(stdevs, Double.NaN);
+			}
+			int code = encode(kmer);
+			if(kmer.length() != k || code == -1)
+			{
+				input.close();
+				throw new Exception("Invalid k-mer in model " + modelFile + ": " + kmer);
+			}
+			means[code] = table.getDouble(meanCol);
+			stdevs[code] = table.getDouble(stdevCol);
+		}
+		input.close();
+
+		if(k == -1)
+		{
+			throw new Exception("Model has no k-mers: " + modelFile);
+		}
+		return new PoreModel(k, DoubleBuffer.wrap(means), DoubleBuffer.wrap(stdevs));
+	}
+
+	/*
+	 * Memory-maps a binary model cache, returning null if it is not a valid cache or was built from a different model file
+	 */
+	static PoreModel readCache(File cacheFile, File modelFile) throws Exception
+	{
+		byte[] source = getSourceHeader(modelFile);
+		int headerBytes = getHeaderBytes(source);
+		RandomAccessFile raf = new RandomAccessFile(cacheFile, "r");
+		FileChannel channel = raf.getChannel();
+		try
+		{
+			if(channel.size() < headerBytes)
+			{
+				return null;
+			}
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if(buf.getInt(0) != CACHE_MAGIC || buf.getInt(4) != CACHE_VERSION || buf.getInt(12) != headerBytes)
+			{
+				return null;
+			}
+			for(int i = 0; i<source.length; i++)
+			{
+				if(buf.get(16 + i) != source[i])
+				{
+					return null;
+				}
+			}
+			int k = buf.getInt(8);
+			if(k < 1 || k > MAX_K)
+			{
+				return null;
+			}
+			int n = 1 << (2 * k);
+			if(channel.size() != headerBytes + 16L * n)
+			{
+				return null;
+			}
+			buf.position(headerBytes);
+			DoubleBuffer means = buf.slice().asDoubleBuffer();
+			means.limit(n);
+			buf.position(headerBytes + 8 * n);
+			DoubleBuffer stdevs = buf.slice().asDoubleBuffer();
+			return new PoreModel(k, means.slice(), stdevs);
+		}
+		finally
+		{
+			// The mapping stays valid after the channel is closed
+			channel.close();
+			raf.close();
+		}
+	}
+
+	/*
+	 * Writes this model as a binary cache: a header recording which model file it came from, followed by the means
+	 * and the standard deviations.  It is written to a temporary file which then replaces the cache, so jobs which
+	 * have the old cache memory-mapped keep reading a complete file.
+	 */
+	void writeCache(File cacheFile, File modelFile) throws IOException
+	{
+		int n = 1 << (2 * k);
+		byte[] source = getSourceHeader(modelFile);
+		int headerBytes = getHeaderBytes(source);
+		File dir = cacheFile.getAbsoluteFile().getParentFile();
+		File tmpFile = File.createTempFile(cacheFile.getName() + ".", ".tmp", dir);
+		try
+		{
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+			try
+			{
+				ByteBuffer header = ByteBuffer.allocate(headerBytes);
+				header.putInt(CACHE_MAGIC).putInt(CACHE_VERSION).putInt(k).putInt(headerBytes).put(source);
+				out.write(header.array());
+				for(int i = 0; i<n; i++)
+				{
+					out.writeDouble(means.get(i));
+				}
+				for(int i = 0; i<n; i++)
+				{
+					out.writeDouble(stdevs.get(i));
+				}
+			}
+			finally
+			{
+				out.close();
+			}
+			Files.move(tmpFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally
+		{
+			// Only still there if writing or moving it failed
+			tmpFile.delete();
+		}
+	}
+
+	/*
+	 * Identifies the model file a cache is built from: its size and modification time followed by its canonical path
+	 */
+	static byte[] getSourceHeader(File modelFile) throws IOException
+	{
+		byte[] path = modelFile.getCanonicalPath().getBytes("UTF-8");
+		ByteBuffer res = ByteBuffer.allocate(CACHE_FIXED_HEADER_BYTES - 16 + path.length);
+		res.putLong(modelFile.length()).putLong(modelFile.lastModified()).put(path);
+		return res.array();
+	}
+
+	/*
+	 * The size of the header, padded so the levels which follow it are aligned to 8 bytes
+	 */
+	static int getHeaderBytes(byte[] source)
+	{
+		return (16 + source.length + 7) / 8 * 8;
+	}
+
+	/*
+	 * Gets the mean signal level of a k-mer, or NaN if it is not in the model
+	 */
+	double getMean(String kmer)
+	{
+		int code = encode(kmer);
+		return (code == -1 || kmer.length() != k) ? Double.NaN : means.get(code);
+	}
+
+	/*
+	 * Gets the standard deviation of the signal level of a k-mer, or NaN if it is not in the model
+	 */
+	double getStdev(String kmer)
+	{
+		int code = encode(kmer);
+		return (code == -1 || kmer.length() != k) ? Double.NaN : stdevs.get(code);
+	}
+
+	/*
+	 * The difference between two signal levels in units of their combined standard deviation
+	 */
+	static double levelZScore(double mean1, double stdev1, double mean2, double stdev2)
+	{
+		return (mean2 - mean1) / Math.sqrt(stdev1 * stdev1 + stdev2 * stdev2);
+	}
+
+	/*
+	 * The overlapping coefficient of two normally distributed signal levels: the area under
+	 * the smaller of the two densities, which is 1 for identical levels and 0 for fully separated ones
+	 */
+	static double levelOverlap(double mean1, double stdev1, double mean2, double stdev2)
+	{
+		if(Double.isNaN(mean1) || Double.isNaN(stdev1) || Double.isNaN(mean2) || Double.isNaN(stdev2))
+		{
+			return Double.NaN;
+		}
+		if(Math.abs(stdev1 - stdev2) < 1e-9 * Math.max(stdev1, stdev2))
+		{
+			return 2 * normalCdf(-Math.abs(mean1 - mean2) / (2 * stdev1));
+		}
+
+		// The densities cross at the two roots of a quadratic; between them the wider density is the smaller one
+		double narrowMean = stdev1 < stdev2 ? mean1 : mean2, narrowStdev = Math.min(stdev1, stdev2);
+		double wideMean = stdev1 < stdev2 ? mean2 : mean1, wideStdev = Math.max(stdev1, stdev2);
+		double a = 1 / (narrowStdev * narrowStdev) - 1 / (wideStdev * wideStdev);
+		double b = -2 * (narrowMean / (narrowStdev * narrowStdev) - wideMean / (wideStdev * wideStdev));
+		double c = narrowMean * narrowMean / (narrowStdev * narrowStdev) - wideMean * wideMean / (wideStdev * wideStdev)
+				- 2 * Math.log(wideStdev / narrowStdev);
+		double root = Math.sqrt(b * b - 4 * a * c);
+		double lo = (-b - root) / (2 * a), hi = (-b + root) / (2 * a);
+		return normalCdf((lo - narrowMean) / narrowStdev) + 1 - normalCdf((hi - narrowMean) / narrowStdev)
+				+ normalCdf((hi - wideMean) / wideStdev) - normalCdf((lo - wideMean) / wideStdev);
+	}
+
+	/*
+	 * The standard normal cumulative distribution function
+	 */
+	static double normalCdf(double z)
+	{
+		return 0.5 * erfc(-z / Math.sqrt(2));
+	}
+
+	/*
+	 * Complementary error function, using a Chebyshev approximation with fractional error below 1.2e-7
+	 */
+	static double erfc(double x)
+	{
+		double z = Math.abs(x);
+		double t = 1.0 / (1.0 + 0.5 * z);
+		double res = t * Math.exp(-z * z - 1.26551223 + t * (1.00002368 + t * (0.37409196 + t * (0.09678418
+				+ t * (-0.18628806 + t * (0.27886807 + t * (-1.13520398 + t * (1.48851587
+				+ t * (-0.82215223 + t * 0.17087277)))))))));
+		return x >= 0 ? res : 2.0 - res;
+	}
+
+	/*
+	 * Converts a k-mer to its 2-bit code, with the first base in the highest bits, or -1 if it has a non-ACGT base
+	 */
+	static int encode(String kmer)
+	{
+		if(kmer.length() > MAX_K)
+		{
+			return -1;
+		}
+		int code = 0;
+		for(int i = 0; i<kmer.length(); i++)
+		{
+			int val = GetStrandDifferences.charToInt(kmer.charAt(i));
+			if(val < 0 || val > 3)
+			{
+				return -1;
+			}
+			code = (code << 2) | val;
+		}
+		return code;
+	}
+
+	/*
+	 * Converts a 2-bit code back into a k-mer of length k
+	 */
+	static String decode(int code, int k)
+	{
+		char[] res = new char[k];
+		for(int i = k-1; i>=0; i--)
+		{
+			res[i] = GetStrandDifferences.intToChar(code & 3);
+			code >>>= 2;
+		}
+		return new String(res);
+	}
+}
@@ -0,0 +1,68 @@
+/*
+ * An exclusive lock held while a store file is read, updated and saved again, so runs updating the same store
+ * take turns instead of each saving over the other's additions.  The lock is taken on a separate file next to
+ * the store, since the store itself is replaced by a new file each time it is saved.
+ */
+
+import java.io.File;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class StoreLock
+{
+	// File locks belong to the whole process, so jobs in the same process first take turns on one of these
+	static HashMap<String, ReentrantLock> processLocks = new HashMap<String, ReentrantLock>();
+
+	ReentrantLock processLock;
+	FileChannel channel;
+	FileLock fileLock;
+
+	/*
+	 * Waits until no other run in this or any other process holds the lock for the given store
+	 */
+	StoreLock(String fn) throws Exception
+	{
+		File lockFile = new File(fn + ".lock");
+		String key = lockFile.getCanonicalPath();
+		synchronized(processLocks)
+		{
+			processLock = processLocks.get(key);
+			if(processLock == null)
+			{
+				processLock = new ReentrantLock();
+				processLocks.put(key, processLock);
+			}
+		}
+		processLock.lock();
+		try
+		{
+			channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			fileLock = channel.lock();
+		}
+		catch(Exception e)
+		{
+			if(channel != null)
+			{
+				channel.close();
+			}
+			processLock.unlock();
+			throw e;
+		}
+	}
+
+	void release() throws Exception
+	{
+		try
+		{
+			fileLock.release();
+			channel.close();
+		}
+		finally
+		{
+			processLock.unlock();
+		}
+	}
+}
@@ -0,0 +1,347 @@
+/*
+ * A long-running server which keeps genomes and pore models loaded and the JVM warm between jobs.
+ * It listens on a Unix-domain socket and takes one job per connection: a single line naming the tool
+ * followed by its usual key=value arguments, e.g.
+ *   GetStrandDifferences mpileup_file=/data/s1.mpileup out_file=/data/s1.txt genome_file=/data/genome.fa
+ * and replies with a single line, either "OK <milliseconds>" or "ERROR <message>".
+ * Jobs read and write files with the server's permissions, so the socket is kept in a directory only its
+ * owner can open, which keeps other users on the machine from sending jobs.  Paths in jobs are resolved by
+ * the server, so relative paths are relative to the directory the server was started in.
+ * Jobs run at the same time on a shared worker pool, each with its own instance of the tool.  A genome
+ * or model is kept until its file changes, at which point the next job to use it reads it again.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintWriter;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class StrandServer
+{
+	// How long a connection has to send its job line before it is dropped, so idle connections can't hold workers
+	static final int REQUEST_TIMEOUT_MS = 10000;
+	static final int MAX_REQUEST_BYTES = 1 << 20;
+
+	static String socketFn = System.getProperty("user.home") + "/.strand_server/server.sock";
+	static int threads = Runtime.getRuntime().availableProcessors();
+	static String preloadGenomes = "", preloadModels = "";
+
+	static ServerSocketChannel serverChannel;
+	static ExecutorService workers;
+
+	static void usage()
+	{
+		System.out.println("Usage: java -cp src StrandServer [args]");
+		System.out.println("  Example: java -cp src StrandServer preload_genomes=genome.fa preload_models=model.txt");
+		System.out.println();
+		System.out.println("Optional args:");
+		System.out.println("  socket_file     (String) [~/.strand_server/server.sock] - Unix-domain socket to listen on; its directory");
+		System.out.println("                                                        is created if needed and must belong to this user");
+		System.out.println("                                                        with mode 700");
+		System.out.println("  threads         (int)    [# of cores] - number of jobs which can run at once");
+		System.out.println("  preload_genomes (String) [\"\"]         - comma-separated genomes to load before accepting jobs");
+		System.out.println("  preload_models  (String) [\"\"]         - comma-separated pore models to load before accepting jobs");
+		System.out.println();
+		System.out.println("Each connection sends one line: a tool name (GetStrandDifferences, GetProblematicKmers or AddSignalInfo)");
+		System.out.println("followed by the tool's arguments separated by spaces, and gets back \"OK <ms>\" or \"ERROR <message>\".");
+		System.out.println("Sending PING gets back OK, and SHUTDOWN stops the server once running jobs finish. A connection which");
+		System.out.println("hasn't sent its line within " + (REQUEST_TIMEOUT_MS / 1000) + " seconds is closed.");
+		System.out.println("Files are opened by the server, so relative paths are resolved against the directory the server was");
+		System.out.println("started in rather than the client's; absolute paths are safest.");
+		System.out.println("  Example: echo \"AddSignalInfo table_file=$PWD/kmers.txt model_file=$PWD/model.txt out_file=$PWD/out.txt\" \\");
+		System.out.println("               | nc -U ~/.strand_server/server.sock");
+		System.out.println();
+	}
+
+	static void parseArgs(String[] args)
+	{
+		for(String s : args)
+		{
+			int equalsIdx = s.indexOf('=');
+			if(equalsIdx == -1)
+			{
+
+			}
+			else
+			{
+				String key = s.substring(0, equalsIdx);
+				String val = s.substring(1 + equalsIdx);
+				if(key.equalsIgnoreCase("socket_file")) { socketFn = val; }
+				else if(key.equalsIgnoreCase("threads")) { threads = Integer.parseInt(val); }
+				else if(key.equalsIgnoreCase("preload_genomes")) { preloadGenomes = val; }
+				else if(key.equalsIgnoreCase("preload_models")) { preloadModels = val; }
+			}
+		}
+
+		if(socketFn.length() == 0 || threads <= 0)
+		{
+			usage();
+			System.exit(1);
+		}
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		parseArgs(args);
+
+		GetStrandDifferences.residentGenomes = new HashMap<String, LinkedHashMap<String, String>>();
+		GetStrandDifferences.residentGenomeTimes = new HashMap<String, Long>();
+		PoreModel.resident = new HashMap<String, PoreModel>();
+		PoreModel.residentTimes = new HashMap<String, Long>();
+
+		for(String genomeFn : preloadGenomes.split(","))
+		{
+			if(genomeFn.length() > 0)
+			{
+				GetStrandDifferences.loadGenome(genomeFn);
+			}
+		}
+		for(String modelFn : preloadModels.split(","))
+		{
+			if(modelFn.length() > 0)
+			{
+				PoreModel.load(modelFn);
+			}
+		}
+
+		Path socketPath = prepareSocket(socketFn);
+		workers = Executors.newFixedThreadPool(threads);
+		serverChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		serverChannel.bind(UnixDomainSocketAddress.of(socketPath));
+		System.out.println("Listening on " + socketPath + " with " + threads + " workers");
+		try
+		{
+			while(serverChannel.isOpen())
+			{
+				SocketChannel channel;
+				try
+				{
+					channel = serverChannel.accept();
+				}
+				catch(Exception e)
+				{
+					// The socket is closed when shutting down
+					break;
+				}
+				workers.submit(new Job(channel));
+			}
+		}
+		finally
+		{
+			Files.deleteIfExists(socketPath);
+		}
+		workers.shutdown();
+	}
+
+	/*
+	 * Makes sure the socket's directory exists and only this user can get into it, and clears away a socket left
+	 * behind by a server which didn't shut down cleanly
+	 */
+	static Path prepareSocket(String fn) throws Exception
+	{
+		Path socketPath = new File(fn).getAbsoluteFile().toPath();
+		Path dir = socketPath.getParent();
+		Set<PosixFilePermission> ownerOnly = PosixFilePermissions.fromString("rwx------");
+		if(!Files.exists(dir))
+		{
+			Files.createDirectories(dir, PosixFilePermissions.asFileAttribute(ownerOnly));
+		}
+		if(!Files.getOwner(dir).getName().equals(System.getProperty("user.name")) || !Files.getPosixFilePermissions(dir).equals(ownerOnly))
+		{
+			throw new Exception("Socket directory " + dir + " must belong to " + System.getProperty("user.name") + " with mode 700");
+		}
+
+		if(Files.exists(socketPath))
+		{
+			SocketChannel probe = null;
+			try
+			{
+				probe = SocketChannel.open(UnixDomainSocketAddress.of(socketPath));
+			}
+			catch(Exception e)
+			{
+				// Nothing is listening, so the socket is stale
+				Files.delete(socketPath);
+			}
+			if(probe != null)
+			{
+				probe.close();
+				throw new Exception("A server is already listening on " + socketPath);
+			}
+		}
+		return socketPath;
+	}
+
+	/*
+	 * Runs a job line and returns how long it took, throwing an exception if it fails
+	 */
+	static long runJob(String line) throws Exception
+	{
+		long startTime = System.currentTimeMillis();
+		String[] tokens = line.trim().split("\\s+");
+		String tool = tokens[0];
+		String[] args = Arrays.copyOfRange(tokens, 1, tokens.length);
+		if(tool.equalsIgnoreCase("GetStrandDifferences"))
+		{
+			GetStrandDifferences job = new GetStrandDifferences();
+			if(!job.parseArgs(args))
+			{
+				throw new Exception("Missing required arguments for " + tool);
+			}
+			job.run();
+		}
+		else if(tool.equalsIgnoreCase("GetProblematicKmers"))
+		{
+			GetProblematicKmers job = new GetProblematicKmers();
+			if(!job.parseArgs(args))
+			{
+				throw new Exception("Missing required arguments for " + tool);
+			}
+			job.run();
+		}
+		else if(tool.equalsIgnoreCase("AddSignalInfo"))
+		{
+			AddSignalInfo job = new AddSignalInfo();
+			if(!job.parseArgs(args))
+			{
+				throw new Exception("Missing required arguments for " + tool);
+			}
+			job.run();
+		}
+		else
+		{
+			throw new Exception("Unknown tool: " + tool);
+		}
+		return System.currentTimeMillis() - startTime;
+	}
+
+	/*
+	 * Reads the job line from a connection, giving up if it doesn't arrive within REQUEST_TIMEOUT_MS.
+	 * Returns null if the connection closes without sending anything.
+	 */
+	static String readRequest(SocketChannel channel) throws Exception
+	{
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		ByteBuffer buf = ByteBuffer.allocate(4096);
+		long deadline = System.currentTimeMillis() + REQUEST_TIMEOUT_MS;
+		channel.configureBlocking(false);
+		Selector selector = Selector.open();
+		try
+		{
+			channel.register(selector, SelectionKey.OP_READ);
+			while(true)
+			{
+				long remaining = deadline - System.currentTimeMillis();
+				if(remaining <= 0)
+				{
+					throw new Exception("Timed out waiting for the job line");
+				}
+				selector.select(remaining);
+				selector.selectedKeys().clear();
+				buf.clear();
+				int n = channel.read(buf);
+				if(n == -1)
+				{
+					return line.size() == 0 ? null : line.toString("UTF-8");
+				}
+				for(int i = 0; i<n; i++)
+				{
+					byte b = buf.get(i);
+					if(b == '\n')
+					{
+						return line.toString("UTF-8");
+					}
+					line.write(b);
+				}
+				if(line.size() > MAX_REQUEST_BYTES)
+				{
+					throw new Exception("Job line is too long");
+				}
+			}
+		}
+		finally
+		{
+			selector.close();
+			channel.configureBlocking(true);
+		}
+	}
+
+	/*
+	 * Reads the job line from a connection, runs it, and replies with the result
+	 */
+	static class Job implements Runnable
+	{
+		SocketChannel channel;
+
+		Job(SocketChannel channel)
+		{
+			this.channel = channel;
+		}
+
+		public void run()
+		{
+			try
+			{
+				String line;
+				try
+				{
+					line = readRequest(channel);
+				}
+				catch(Exception e)
+				{
+					System.out.println("Dropped connection: " + e.getMessage());
+					channel.close();
+					return;
+				}
+				PrintWriter out = new PrintWriter(Channels.newOutputStream(channel), true);
+				if(line == null || line.trim().length() == 0)
+				{
+					out.println("ERROR Empty job");
+				}
+				else if(line.trim().equalsIgnoreCase("PING"))
+				{
+					out.println("OK");
+				}
+				else if(line.trim().equalsIgnoreCase("SHUTDOWN"))
+				{
+					out.println("OK");
+					serverChannel.close();
+				}
+				else
+				{
+					try
+					{
+						long elapsed = runJob(line);
+						out.println("OK " + elapsed);
+					}
+					catch(Throwable e)
+					{
+						out.println("ERROR " + e);
+					}
+				}
+				channel.close();
+			}
+			catch(Exception e)
+			{
+				System.out.println("Failed to handle connection: " + e);
+			}
+		}
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * The shift in a pore model's signal level caused by every single-base substitution in every k-mer.
+ * Shifts are computed once for all 4^k k-mers and stored in a flat primitive table, so the expected
+ * signal change of a substitution is a single array lookup rather than building and probing k-mer strings.
+ */
+
+public class SubstitutionTable
+{
+	int k;
+
+	// Level shifts indexed by ((code * k + offset) * 4 + base), where offset 0 is the first base of the k-mer
+	float[] shifts;
+
+	// For each k-mer, the smallest absolute level shift of any substitution, which measures how ambiguous it is,
+	// or NaN if the k-mer or all of its substitutions are missing from the model
+	float[] minAbsShifts;
+
+	/*
+	 * Computes the shift of every substitution for the given model
+	 */
+	SubstitutionTable(PoreModel model) throws Exception
+	{
+		k = model.k;
+		int n = 1 << (2 * k);
+		if(4L * n * k > Integer.MAX_VALUE - 8)
+		{
+			throw new Exception("Model k-mers are too long for a substitution table: " + k);
+		}
+		shifts = new float[n * k * 4];
+		minAbsShifts = new float[n];
+		for(int code = 0; code<n; code++)
+		{
+			double mean = model.means.get(code);
+			float minAbsShift = Float.NaN;
+			for(int offset = 0; offset<k; offset++)
+			{
+				int shiftBits = 2 * (k - 1 - offset);
+				int cleared = code & ~(3 << shiftBits);
+				for(int base = 0; base<4; base++)
+				{
+					float shift = (float)(model.means.get(cleared | (base << shiftBits)) - mean);
+					shifts[((code * k + offset) << 2) | base] = shift;
+					// Alt k-mers missing from the model give NaN shifts, which must not replace the running minimum
+					if(base != ((code >>> shiftBits) & 3) && !Float.isNaN(shift) && !(Math.abs(shift) >= minAbsShift))
+					{
+						minAbsShift = Math.abs(shift);
+					}
+				}
+			}
+			minAbsShifts[code] = minAbsShift;
+		}
+	}
+
+	/*
+	 * Gets the level shift from substituting the given base (0-3 for A/C/G/T) at an offset of a k-mer
+	 */
+	float getShift(int code, int offset, int base)
+	{
+		return shifts[((code * k + offset) << 2) | base];
+	}
+
+	/*
+	 * Gets the level shift between two k-mer codes, or NaN if they differ by more than one base
+	 */
+	float getShift(int code, int altCode)
+	{
+		int diff = code ^ altCode;
+		if(diff == 0)
+		{
+			return 0;
+		}
+		int group = (31 - Integer.numberOfLeadingZeros(diff)) / 2;
+		if((diff & ~(3 << (2 * group))) != 0)
+		{
+			return Float.NaN;
+		}
+		return getShift(code, k - 1 - group, (altCode >>> (2 * group)) & 3);
+	}
+
+	/*
+	 * Gets the level shift between two k-mers, or NaN if either is not in the model or they differ by more than one base
+	 */
+	float getShift(String kmer, String altKmer)
+	{
+		int code = PoreModel.encode(kmer), altCode = PoreModel.encode(altKmer);
+		if(code == -1 || altCode == -1 || kmer.length() != k || altKmer.length() != k)
+		{
+			return Float.NaN;
+		}
+		return getShift(code, altCode);
+	}
+}
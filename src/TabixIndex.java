@@ -0,0 +1,198 @@
+/*
+ * Builds a tabix (.tbi) index for a sorted, BGZF-compressed table with the contig in the first column and a
+ * 1-based position in the second, the same index "tabix -s 1 -b 2 -e 2 -S 1" would make, so regions of the
+ * table can be fetched with tabix or htslib without reading the whole file.
+ */
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class TabixIndex
+{
+	// Each linear index entry covers 16 KB of the contig
+	static final int LINEAR_SHIFT = 14;
+
+	// The number of header lines before the first record
+	int skipLines;
+
+	// Index data for each contig in the order their records appear
+	LinkedHashMap<String, ContigIndex> contigs;
+
+	TabixIndex(int skipLines)
+	{
+		this.skipLines = skipLines;
+		contigs = new LinkedHashMap<String, ContigIndex>();
+	}
+
+	/*
+	 * Adds a record covering the 0-based, end-exclusive interval [beg, end) which occupies the uncompressed bytes
+	 * [start, stop) of the data file.  Records must be added in file order.
+	 */
+	void addRecord(String chrName, int beg, int end, long start, long stop)
+	{
+		ContigIndex contig = contigs.get(chrName);
+		if(contig == null)
+		{
+			contig = new ContigIndex();
+			contigs.put(chrName, contig);
+		}
+		contig.add(beg, end, start, stop);
+	}
+
+	/*
+	 * Writes the index for a data file which has been closed, itself compressed with BGZF as tabix expects
+	 */
+	void write(File file, BgzfWriter data) throws Exception
+	{
+		DataOutputStream out = new DataOutputStream(new BgzfWriter(file, 1));
+		out.write(new byte[] {'T', 'B', 'I', 1});
+		writeInt(out, contigs.size());
+		writeInt(out, 0); // generic format
+		writeInt(out, 1); // contig column
+		writeInt(out, 2); // start column
+		writeInt(out, 2); // end column
+		writeInt(out, '#'); // comment character
+		writeInt(out, skipLines);
+
+		StringBuilder names = new StringBuilder();
+		for(String chrName : contigs.keySet())
+		{
+			names.append(chrName).append('\0');
+		}
+		byte[] nameBytes = names.toString().getBytes("UTF-8");
+		writeInt(out, nameBytes.length);
+		out.write(nameBytes);
+
+		for(ContigIndex contig : contigs.values())
+		{
+			writeInt(out, contig.bins.size());
+			for(Map.Entry<Integer, ArrayList<long[]>> bin : contig.bins.entrySet())
+			{
+				writeInt(out, bin.getKey());
+				writeInt(out, bin.getValue().size());
+				for(long[] chunk : bin.getValue())
+				{
+					writeLong(out, data.getVirtualOffset(chunk[0]));
+					writeLong(out, data.getVirtualOffset(chunk[1]));
+				}
+			}
+			long[] linear = contig.getLinearIndex();
+			writeInt(out, linear.length);
+			for(long offset : linear)
+			{
+				writeLong(out, data.getVirtualOffset(offset));
+			}
+		}
+		out.close();
+	}
+
+	static void writeInt(DataOutputStream out, int val) throws Exception
+	{
+		out.writeInt(Integer.reverseBytes(val));
+	}
+
+	static void writeLong(DataOutputStream out, long val) throws Exception
+	{
+		out.writeLong(Long.reverseBytes(val));
+	}
+
+	/*
+	 * The smallest bin of the UCSC binning scheme which contains the 0-based, end-exclusive interval [beg, end)
+	 */
+	static int reg2bin(int beg, int end)
+	{
+		end--;
+		if(beg >> 14 == end >> 14) return ((1 << 15) - 1) / 7 + (beg >> 14);
+		if(beg >> 17 == end >> 17) return ((1 << 12) - 1) / 7 + (beg >> 17);
+		if(beg >> 20 == end >> 20) return ((1 << 9) - 1) / 7 + (beg >> 20);
+		if(beg >> 23 == end >> 23) return ((1 << 6) - 1) / 7 + (beg >> 23);
+		if(beg >> 26 == end >> 26) return ((1 << 3) - 1) / 7 + (beg >> 26);
+		return 0;
+	}
+
+	/*
+	 * The bins of one contig, each holding chunks of uncompressed file offsets, and the linear index
+	 */
+	static class ContigIndex
+	{
+		TreeMap<Integer, ArrayList<long[]>> bins;
+
+		// The offset of the first record overlapping each 16 KB window, or -1 if none does
+		long[] linear;
+
+		ContigIndex()
+		{
+			bins = new TreeMap<Integer, ArrayList<long[]>>();
+			linear = new long[0];
+		}
+
+		void add(int beg, int end, long start, long stop)
+		{
+			int bin = reg2bin(beg, end);
+			ArrayList<long[]> chunks = bins.get(bin);
+			if(chunks == null)
+			{
+				chunks = new ArrayList<long[]>();
+				bins.put(bin, chunks);
+			}
+
+			// Extend the last chunk of the bin when this record directly follows it
+			long[] last = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+			if(last != null && last[1] == start)
+			{
+				last[1] = stop;
+			}
+			else
+			{
+				chunks.add(new long[] {start, stop});
+			}
+
+			int lastWindow = (end - 1) >> LINEAR_SHIFT;
+			if(lastWindow >= linear.length)
+			{
+				int oldLength = linear.length;
+				linear = Arrays.copyOf(linear, lastWindow + 1);
+				Arrays.fill(linear, oldLength, linear.length, -1);
+			}
+			for(int w = beg >> LINEAR_SHIFT; w <= lastWindow; w++)
+			{
+				if(linear[w] == -1)
+				{
+					linear[w] = start;
+				}
+			}
+		}
+
+		/*
+		 * Gets the linear index with windows that no record overlaps filled from their neighbours, like tabix does
+		 */
+		long[] getLinearIndex()
+		{
+			long[] res = Arrays.copyOf(linear, linear.length);
+			long first = 0;
+			for(long offset : res)
+			{
+				if(offset != -1)
+				{
+					first = offset;
+					break;
+				}
+			}
+			long prev = first;
+			for(int i = 0; i<res.length; i++)
+			{
+				if(res[i] == -1)
+				{
+					res[i] = prev;
+				}
+				prev = res[i];
+			}
+			return res;
+		}
+	}
+}
@@ -0,0 +1,186 @@
+/*
+ * Reads the rows of a tab-separated table whose columns are named in a header line.
+ * Column indices are resolved once from the header, and each row is only split as far
+ * as the last column that has actually been asked for, so tools which use a handful of
+ * columns don't pay for tokenizing the rest of the line.
+ */
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+public class TableReader
+{
+	// Map of lowercase column names to which column they correspond to
+	HashMap<String, Integer> columnToIndex;
+
+	// The current row and the boundaries of the fields which have been found in it so far
+	String line;
+	int[] fieldStart;
+	int[] fieldEnd;
+	int fieldsFound;
+
+	/*
+	 * Parses the header line and resolves the index of every named column
+	 */
+	TableReader(String headerLine)
+	{
+		columnToIndex = new HashMap<String, Integer>();
+		String[] categories = headerLine.split("\t");
+		for(int i = 0; i<categories.length; i++)
+		{
+			columnToIndex.put(categories[i].toLowerCase(), i);
+		}
+		fieldStart = new int[categories.length];
+		fieldEnd = new int[categories.length];
+		line = "";
+	}
+
+	/*
+	 * Whether or not the header has a column with the given name
+	 */
+	boolean hasColumn(String name)
+	{
+		return columnToIndex.containsKey(name.toLowerCase());
+	}
+
+	/*
+	 * Gets the index of a named column, to be passed to the field accessors
+	 */
+	int getColumn(String name) throws Exception
+	{
+		Integer idx = columnToIndex.get(name.toLowerCase());
+		if(idx == null)
+		{
+			throw new Exception("Table is missing column: " + name);
+		}
+		return idx;
+	}
+
+	/*
+	 * Moves the reader onto a new row without tokenizing it
+	 */
+	void setRow(String line)
+	{
+		this.line = line;
+		fieldsFound = 0;
+	}
+
+	/*
+	 * Finds the boundaries of fields up to and including the given column
+	 */
+	void findFields(int col) throws Exception
+	{
+		if(col >= fieldStart.length)
+		{
+			fieldStart = Arrays.copyOf(fieldStart, col + 1);
+			fieldEnd = Arrays.copyOf(fieldEnd, col + 1);
+		}
+		int start = fieldsFound == 0 ? 0 : (fieldEnd[fieldsFound - 1] + 1);
+		while(fieldsFound <= col)
+		{
+			if(start > line.length())
+			{
+				throw new Exception("Row has too few fields: " + line);
+			}
+			int end = line.indexOf('\t', start);
+			if(end == -1)
+			{
+				end = line.length();
+			}
+			fieldStart[fieldsFound] = start;
+			fieldEnd[fieldsFound] = end;
+			fieldsFound++;
+			start = end + 1;
+		}
+	}
+
+	/*
+	 * Gets a field of the current row as a string
+	 */
+	String getString(int col) throws Exception
+	{
+		findFields(col);
+		return line.substring(fieldStart[col], fieldEnd[col]);
+	}
+
+	/*
+	 * Gets the length of a field of the current row
+	 */
+	int getLength(int col) throws Exception
+	{
+		findFields(col);
+		return fieldEnd[col] - fieldStart[col];
+	}
+
+	/*
+	 * Gets a single character of a field in the current row
+	 */
+	char getChar(int col, int offset) throws Exception
+	{
+		findFields(col);
+		return line.charAt(fieldStart[col] + offset);
+	}
+
+	/*
+	 * Parses a field of the current row as an integer without copying it out of the line
+	 */
+	int getInt(int col) throws Exception
+	{
+		findFields(col);
+		return parseInt(fieldStart[col], fieldEnd[col]);
+	}
+
+	/*
+	 * Parses a field of the current row as a double
+	 */
+	double getDouble(int col) throws Exception
+	{
+		return Double.parseDouble(getString(col));
+	}
+
+	/*
+	 * Parses a comma-separated list of integers in a field of the current row into res,
+	 * returning how many values were found
+	 */
+	int getIntList(int col, int[] res) throws Exception
+	{
+		findFields(col);
+		int count = 0;
+		int start = fieldStart[col], end = fieldEnd[col];
+		while(start < end && count < res.length)
+		{
+			int comma = line.indexOf(',', start);
+			if(comma == -1 || comma > end)
+			{
+				comma = end;
+			}
+			res[count++] = parseInt(start, comma);
+			start = comma + 1;
+		}
+		return count;
+	}
+
+	/*
+	 * Parses the integer in line[start, end)
+	 */
+	int parseInt(int start, int end) throws Exception
+	{
+		boolean negative = start < end && line.charAt(start) == '-';
+		int i = negative ? start + 1 : start;
+		if(i == end)
+		{
+			throw new NumberFormatException("Empty integer field in row: " + line);
+		}
+		int res = 0;
+		for(; i<end; i++)
+		{
+			char c = line.charAt(i);
+			if(c < '0' || c > '9')
+			{
+				throw new NumberFormatException("Invalid integer " + line.substring(start, end) + " in row: " + line);
+			}
+			res = res * 10 + (c - '0');
+		}
+		return negative ? -res : res;
+	}
+}
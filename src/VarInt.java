@@ -0,0 +1,66 @@
+/*
+ * Variable-length integer encoding for compact binary files: seven bits per byte, lowest bits first,
+ * with the high bit set on every byte but the last.  Signed values are zigzag-encoded first so small
+ * negative numbers stay short.
+ */
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+
+public class VarInt
+{
+	static void write(DataOutputStream out, long val) throws Exception
+	{
+		while((val & ~0x7fL) != 0)
+		{
+			out.writeByte((int)((val & 0x7f) | 0x80));
+			val >>>= 7;
+		}
+		out.writeByte((int)val);
+	}
+
+	static long read(DataInputStream input) throws Exception
+	{
+		long res = 0;
+		for(int shift = 0; shift < 64; shift += 7)
+		{
+			int b = input.readUnsignedByte();
+			res |= (long)(b & 0x7f) << shift;
+			if((b & 0x80) == 0)
+			{
+				return res;
+			}
+		}
+		throw new Exception("Malformed variable-length integer");
+	}
+
+	/*
+	 * Reads a value from the current position of a buffer, such as a memory-mapped file
+	 */
+	static long read(ByteBuffer buf) throws Exception
+	{
+		long res = 0;
+		for(int shift = 0; shift < 64; shift += 7)
+		{
+			int b = buf.get() & 0xff;
+			res |= (long)(b & 0x7f) << shift;
+			if((b & 0x80) == 0)
+			{
+				return res;
+			}
+		}
+		throw new Exception("Malformed variable-length integer");
+	}
+
+	static void writeSigned(DataOutputStream out, long val) throws Exception
+	{
+		write(out, (val << 1) ^ (val >> 63));
+	}
+
+	static long readSigned(DataInputStream input) throws Exception
+	{
+		long val = read(input);
+		return (val >>> 1) ^ -(val & 1);
+	}
+}
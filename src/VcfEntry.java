@@ -6,8 +6,8 @@
 
 import java.util.Arrays;
 import java.util.HashSet;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class VcfEntry implements Comparable<VcfEntry>
 {
@@ -15,7 +15,19 @@ public class VcfEntry implements Comparable<VcfEntry>
 	String originalLine;
 	String[] tabTokens;
 	String oldId;
-	String key;
+	
+	// Sort key made of the contig's ID, the position, and a hash of the ALT allele
+	// The contig ID is the contig's rank in whatever order the caller sorts by, and is -1 until it is set
+	int contigId = -1;
+	int pos;
+	int alleleHash;
+	
+	// INFO fields in their original order, parsed from tabTokens[7] the first time they are needed
+	// Flags (fields without a value) map to null
+	LinkedHashMap<String, String> info;
+	
+	// Whether info has changed since tabTokens[7] was last rebuilt from it
+	boolean infoChanged;
 	
 	HashSet<Integer> support;
 	
@@ -34,7 +46,8 @@ public class VcfEntry implements Comparable<VcfEntry>
 	
 	void setKey() throws Exception
 	{
-		key = getChromosome() + "_" + String.format("%08d", getPos()) + "_" + getAlt();
+		pos = getPos();
+		alleleHash = getAlt().hashCode();
 	}
 	
 	/*
@@ -42,6 +55,11 @@ public class VcfEntry implements Comparable<VcfEntry>
 	 */
 	public String toString()
 	{
+		if(infoChanged)
+		{
+			tabTokens[7] = buildInfo();
+			infoChanged = false;
+		}
 		StringBuilder sb = new StringBuilder("");
 		for(int i = 0; i<tabTokens.length; i++)
 		{
@@ -135,66 +153,95 @@ public class VcfEntry implements Comparable<VcfEntry>
 	}
 	
 	/*
-	 * Set a particular VCF INFO field, adding the field if it doesn't already exist
+	 * Parse the INFO field into an ordered map if it hasn't been already
 	 */
-	public void setInfo(String field, String val) throws Exception
+	LinkedHashMap<String, String> getInfoMap()
 	{
-		if(tabTokens[7].equals("."))
+		if(info != null)
 		{
-			tabTokens[7] = field + "=" + val;
-			return;
+			return info;
 		}
-		String[] infoFields = tabTokens[7].split(";");
-		for(String semitoken : infoFields)
+		info = new LinkedHashMap<String, String>();
+		String infoToken = tabTokens[7];
+		if(infoToken.equals("."))
+		{
+			return info;
+		}
+		int start = 0;
+		while(start <= infoToken.length())
 		{
-			int equalIndex = semitoken.indexOf('=');
-			if(equalIndex == -1)
+			int end = infoToken.indexOf(';', start);
+			if(end == -1)
 			{
-				continue;
+				end = infoToken.length();
 			}
-			String key = semitoken.substring(0, equalIndex);
-			if(key.equals(field))
+			if(end > start)
 			{
-				String updatedToken = key + "=" + val;
-				
-				// Special case if this is the first INFO field
-				if(tabTokens[7].startsWith(semitoken))
+				int equalIndex = infoToken.indexOf('=', start);
+				if(equalIndex == -1 || equalIndex > end)
 				{
-					tabTokens[7] = tabTokens[7].replaceFirst(Pattern.quote(semitoken), Matcher.quoteReplacement(updatedToken));
+					String flag = infoToken.substring(start, end);
+					if(!info.containsKey(flag))
+					{
+						info.put(flag, null);
+					}
 				}
 				else
 				{
-					tabTokens[7] = tabTokens[7].replace(";" + semitoken, ";" + updatedToken);
+					// Keep the first value when a key is repeated, which is what lookups used to find
+					String key = infoToken.substring(start, equalIndex);
+					if(info.get(key) == null)
+					{
+						info.put(key, infoToken.substring(1 + equalIndex, end));
+					}
 				}
-				return;
 			}
+			start = end + 1;
 		}
-		
-		// Field not found, so add it!
-		tabTokens[7] += ";" + field + "=" + val;
+		return info;
 	}
 	
 	/*
-	 * Get the value of a particular INFO field
+	 * Rebuild the INFO column from the parsed fields
 	 */
-	public String getInfo(String field) throws Exception
+	String buildInfo()
 	{
-		String infoToken = tabTokens[7];
-		String[] semicolonSplit = infoToken.split(";");
-		for(String semitoken : semicolonSplit)
+		if(info.isEmpty())
+		{
+			return ".";
+		}
+		StringBuilder sb = new StringBuilder();
+		for(Map.Entry<String, String> entry : info.entrySet())
 		{
-			int equalIndex = semitoken.indexOf('=');
-			if(equalIndex == -1)
+			if(sb.length() > 0)
 			{
-				continue;
+				sb.append(';');
 			}
-			String key = semitoken.substring(0, equalIndex);
-			if(key.equals(field))
+			sb.append(entry.getKey());
+			if(entry.getValue() != null)
 			{
-				return semitoken.substring(1 + equalIndex);
+				sb.append('=').append(entry.getValue());
 			}
 		}
-		return "";
+		return sb.toString();
+	}
+	
+	/*
+	 * Set a particular VCF INFO field, adding the field if it doesn't already exist
+	 */
+	public void setInfo(String field, String val) throws Exception
+	{
+		getInfoMap().put(field, val);
+		infoChanged = true;
+	}
+	
+	/*
+	 * Get the value of a particular INFO field
+	 */
+	public String getInfo(String field) throws Exception
+	{
+		String val = getInfoMap().get(field);
+		return val == null ? "" : val;
 	}
 	
 	/*
@@ -202,22 +249,7 @@ public class VcfEntry implements Comparable<VcfEntry>
 	 */
 	public boolean hasInfoField(String fieldName)
 	{
-		String infoToken = tabTokens[7];
-		String[] semicolonSplit = infoToken.split(";");
-		for(String semitoken : semicolonSplit)
-		{
-			int equalIndex = semitoken.indexOf('=');
-			if(equalIndex == -1)
-			{
-				continue;
-			}
-			String key = semitoken.substring(0, equalIndex);
-			if(key.equals(fieldName))
-			{
-				return true;
-			}
-		}
-		return false;
+		return getInfoMap().get(fieldName) != null;
 	}
 	
 	// Merges v into this variant
@@ -228,27 +260,38 @@ public class VcfEntry implements Comparable<VcfEntry>
 			support.add(sample);
 		}
 		
-		String[] infoFields = v.tabTokens[7].split(";");
-		for(String semitoken : infoFields)
+		for(Map.Entry<String, String> entry : v.getInfoMap().entrySet())
 		{
-			int equalIndex = semitoken.indexOf('=');
-			if(equalIndex == -1)
+			if(entry.getValue() != null && !hasInfoField(entry.getKey()))
 			{
-				continue;
-			}
-			String key = semitoken.substring(0, equalIndex);
-			String val = semitoken.substring(1 + equalIndex);
-			
-			if(!hasInfoField(key))
-			{
-				setInfo(key, val);
+				setInfo(entry.getKey(), entry.getValue());
 			}
 		}
 	}
 
+	/*
+	 * Whether or not this variant is at the same contig and position as another one
+	 */
+	boolean samePosition(VcfEntry o)
+	{
+		return contigId == o.contigId && pos == o.pos;
+	}
+
 	public int compareTo(VcfEntry o)
 	{
-		return key.compareTo(o.key);
+		if(contigId != o.contigId)
+		{
+			return Integer.compare(contigId, o.contigId);
+		}
+		if(pos != o.pos)
+		{
+			return Integer.compare(pos, o.pos);
+		}
+		if(alleleHash != o.alleleHash)
+		{
+			return Integer.compare(alleleHash, o.alleleHash);
+		}
+		return getAlt().compareTo(o.getAlt());
 	}
 	
 }